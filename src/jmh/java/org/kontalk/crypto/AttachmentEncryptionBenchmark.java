@@ -0,0 +1,92 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Attachment file encryption into a stream, with varying buffer sizes.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AttachmentEncryptionBenchmark {
+
+    @Param({"65536", "1048576", "8388608"})
+    int fileSize;
+
+    @Param({"4096", "65536"})
+    int bufferSize;
+
+    private PersonalKey mMyKey;
+    private List<PGPUtils.PGPCoderKey> mReceiverKeys;
+    private File mFile;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkKeys keys = BenchmarkKeys.generate();
+        mMyKey = keys.personalKey();
+        mReceiverKeys = Collections.singletonList(keys.coderKey());
+
+        // random data, not compressible like most media files
+        byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        mFile = File.createTempFile("kontalk_bench_att", ".dat");
+        FileUtils.writeByteArrayToFile(mFile, data);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtils.deleteQuietly(mFile);
+    }
+
+    @Benchmark
+    public void encrypt() throws Exception {
+        try (InputStream in = new FileInputStream(mFile)) {
+            Encryptor.encryptAndSign(in, NullOutputStream.NULL_OUTPUT_STREAM,
+                    mMyKey, mReceiverKeys, Encryptor.bufferSize(bufferSize));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.IOException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.Date;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPKeyRingGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.bouncycastle.openpgp.PGPSignatureSubpacketVector;
+import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.kontalk.misc.KonException;
+
+/**
+ * Freshly generated key ring with the same layout as a Kontalk key:
+ * authentication master key, signing and encryption sub keys.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class BenchmarkKeys {
+
+    static final String UID = "Benchmark <bench@kontalk.test>";
+    static final char[] PASSPHRASE = "benchmark".toCharArray();
+
+    private static final int KEY_SIZE = 2048;
+
+    final byte[] secretKeyRing;
+    final byte[] publicKeyRing;
+
+    private BenchmarkKeys(byte[] secretKeyRing, byte[] publicKeyRing) {
+        this.secretKeyRing = secretKeyRing;
+        this.publicKeyRing = publicKeyRing;
+    }
+
+    PersonalKey personalKey() throws Exception {
+        return PersonalKey.load(secretKeyRing, PASSPHRASE);
+    }
+
+    PGPUtils.PGPCoderKey coderKey() {
+        return PGPUtils.readPublicKey(publicKeyRing)
+                .orElseThrow(() -> new IllegalStateException("can't read public key"));
+    }
+
+    /** The decrypted master key pair. */
+    PGPKeyPair authKeyPair() throws PGPException, KonException {
+        PGPSecretKeyRing secRing = new PGPSecretKeyRing(secretKeyRing, PGPUtils.FP_CALC);
+        PBESecretKeyDecryptor decryptor = new JcePBESecretKeyDecryptorBuilder()
+                .setProvider(PGPUtils.PROVIDER)
+                .build(PASSPHRASE);
+        return PGPUtils.decrypt(secRing.getSecretKey(), decryptor);
+    }
+
+    static BenchmarkKeys generate()
+            throws NoSuchAlgorithmException, NoSuchProviderException, PGPException, IOException {
+        PGPUtils.registerProvider();
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", PGPUtils.PROVIDER);
+        kpg.initialize(KEY_SIZE);
+        Date now = new Date();
+        PGPKeyPair authKP = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), now);
+        PGPKeyPair signKP = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), now);
+        PGPKeyPair encryptKP = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), now);
+
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder()
+                .build().get(HashAlgorithmTags.SHA1);
+
+        PGPKeyRingGenerator gen = new PGPKeyRingGenerator(
+                PGPSignature.POSITIVE_CERTIFICATION,
+                authKP,
+                UID,
+                sha1Calc,
+                keyFlags(KeyFlags.CERTIFY_OTHER | KeyFlags.AUTHENTICATION),
+                null,
+                new JcaPGPContentSignerBuilder(authKP.getPublicKey().getAlgorithm(),
+                        HashAlgorithmTags.SHA256).setProvider(PGPUtils.PROVIDER),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256, sha1Calc)
+                        .setProvider(PGPUtils.PROVIDER).build(PASSPHRASE));
+        gen.addSubKey(signKP, keyFlags(KeyFlags.SIGN_DATA), null);
+        gen.addSubKey(encryptKP, keyFlags(KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE), null);
+
+        return new BenchmarkKeys(gen.generateSecretKeyRing().getEncoded(),
+                gen.generatePublicKeyRing().getEncoded());
+    }
+
+    private static PGPSignatureSubpacketVector keyFlags(int flags) {
+        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
+        spGen.setKeyFlags(false, flags);
+        return spGen.generate();
+    }
+}
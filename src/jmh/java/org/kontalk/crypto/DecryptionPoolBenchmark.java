@@ -0,0 +1,138 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.RandomStringUtils;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.kontalk.util.EncodingUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decryption throughput for a burst of incoming messages: decrypted one after
+ * another on one thread, or on a pool with one worker per core like the
+ * decrypt stage of the incoming message pipeline.
+ *
+ * Scores are per message.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DecryptionPoolBenchmark {
+
+    private static final int BURST = 64;
+
+    @Param({"256", "4096"})
+    int payloadSize;
+
+    private PGPPrivateKey mPrivateKey;
+    private PGPPublicKey mSenderKey;
+    private final List<String> mBurst = new ArrayList<>(BURST);
+    private ExecutorService mPool;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkKeys keys = BenchmarkKeys.generate();
+        PersonalKey myKey = keys.personalKey();
+        PGPUtils.PGPCoderKey coderKey = keys.coderKey();
+        mPrivateKey = myKey.getPrivateEncryptionKey();
+        mSenderKey = coderKey.signKey;
+
+        // different messages, like in a real burst
+        List<PGPUtils.PGPCoderKey> receiverKeys = Collections.singletonList(coderKey);
+        for (int i = 0; i < BURST; i++) {
+            String text = RandomStringUtils.randomAlphanumeric(payloadSize);
+            mBurst.add(Encryptor.encryptToBase64(
+                    Encryptor.toCPIM(myKey, receiverKeys, Encryptor.MIME_TEXT, text),
+                    myKey, receiverKeys));
+        }
+
+        mPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                r -> {
+                    Thread thread = new Thread(r, "Benchmark Decryption Worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPool.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int singleThreaded() throws Exception {
+        int size = 0;
+        for (String encrypted : mBurst)
+            size += this.decrypt(encrypted).length();
+        return size;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int pooled() throws Exception {
+        List<Future<String>> results = new ArrayList<>(BURST);
+        for (String encrypted : mBurst)
+            results.add(mPool.submit(() -> this.decrypt(encrypted)));
+
+        int size = 0;
+        for (Future<String> result : results)
+            size += result.get().length();
+        return size;
+    }
+
+    private String decrypt(String encrypted) throws Exception {
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream(
+                Decryptor.plainSizeHint(encrypted));
+        Decryptor.DecryptionResult result = Decryptor.decryptAndVerify(
+                EncodingUtils.base64ToStream(encrypted),
+                plainOut, mPrivateKey, Optional.of(mSenderKey));
+        if (!result.errors.isEmpty())
+            throw new IllegalStateException("decryption failed: "+result.errors);
+        return Decryptor.toCPIMString(plainOut);
+    }
+}
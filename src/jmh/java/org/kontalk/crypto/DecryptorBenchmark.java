@@ -0,0 +1,109 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.RandomStringUtils;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.kontalk.util.EncodingUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decryption and signature verification of Base64 encoded messages, from
+ * encoded input to CPIM string like for incoming messages.
+ *
+ * Run with "-prof gc" for allocation rates.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DecryptorBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    int payloadSize;
+
+    private PGPPrivateKey mPrivateKey;
+    private PGPPublicKey mSenderKey;
+    private String mEncrypted;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkKeys keys = BenchmarkKeys.generate();
+        PersonalKey myKey = keys.personalKey();
+        PGPUtils.PGPCoderKey coderKey = keys.coderKey();
+        mPrivateKey = myKey.getPrivateEncryptionKey();
+        mSenderKey = coderKey.signKey;
+
+        // message to ourself
+        List<PGPUtils.PGPCoderKey> receiverKeys = Collections.singletonList(coderKey);
+        String text = RandomStringUtils.randomAlphanumeric(payloadSize);
+        mEncrypted = Encryptor.encryptToBase64(
+                Encryptor.toCPIM(myKey, receiverKeys, Encryptor.MIME_TEXT, text),
+                myKey, receiverKeys);
+
+        Decryptor.DecryptionResult result = this.decrypt(new ByteArrayOutputStream());
+        if (!result.errors.isEmpty() || result.signing != Coder.Signing.VERIFIED)
+            throw new IllegalStateException("test message invalid: "+result.errors);
+    }
+
+    @Benchmark
+    public String decryptAndVerify() throws Exception {
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream(
+                Decryptor.plainSizeHint(mEncrypted));
+        this.decrypt(plainOut);
+        return Decryptor.toCPIMString(plainOut);
+    }
+
+    @Benchmark
+    public String decryptOnly() throws Exception {
+        // sender key unknown
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream(
+                Decryptor.plainSizeHint(mEncrypted));
+        Decryptor.decryptAndVerify(EncodingUtils.base64ToStream(mEncrypted),
+                plainOut, mPrivateKey, Optional.empty());
+        return Decryptor.toCPIMString(plainOut);
+    }
+
+    private Decryptor.DecryptionResult decrypt(ByteArrayOutputStream plainOut)
+            throws Exception {
+        return Decryptor.decryptAndVerify(EncodingUtils.base64ToStream(mEncrypted),
+                plainOut, mPrivateKey, Optional.of(mSenderKey));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.RandomStringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Message encryption with RFC 3923 (CPIM wrapped) text and stanza content.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncryptorBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    int payloadSize;
+
+    /** Number of receiver keys, > 1 for group chats. */
+    @Param({"1", "8"})
+    int receivers;
+
+    private PersonalKey mMyKey;
+    private List<PGPUtils.PGPCoderKey> mReceiverKeys;
+    private String mText;
+    private String mStanza;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkKeys keys = BenchmarkKeys.generate();
+        mMyKey = keys.personalKey();
+        mReceiverKeys = Collections.nCopies(receivers, keys.coderKey());
+        mText = RandomStringUtils.randomAlphanumeric(payloadSize);
+        mStanza = "<message type='chat' to='bench@kontalk.test'><body>" +
+                mText + "</body></message>";
+    }
+
+    @Benchmark
+    public String text() throws Exception {
+        return Encryptor.encryptToBase64(
+                Encryptor.toCPIM(mMyKey, mReceiverKeys, Encryptor.MIME_TEXT, mText),
+                mMyKey, mReceiverKeys);
+    }
+
+    @Benchmark
+    public String stanza() throws Exception {
+        return Encryptor.encryptToBase64(
+                Encryptor.toCPIM(mMyKey, mReceiverKeys, Encryptor.MIME_XMPP,
+                        Encryptor.wrapStanza(mStanza)),
+                mMyKey, mReceiverKeys);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.security.cert.X509Certificate;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Key loading: contact public keys, the personal key (with and without
+ * existing bridge certificate) and X.509 bridge certificate creation.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyBenchmark {
+
+    private BenchmarkKeys mKeys;
+    private PGPKeyPair mAuthKeyPair;
+    private byte[] mBridgeCert;
+
+    @Setup
+    public void setup() throws Exception {
+        mKeys = BenchmarkKeys.generate();
+        mAuthKeyPair = mKeys.authKeyPair();
+        mBridgeCert = X509Bridge.encode(mKeys.personalKey().getBridgeCertificate());
+    }
+
+    @Benchmark
+    public Optional<PGPUtils.PGPCoderKey> readPublicKey() {
+        return PGPUtils.readPublicKey(mKeys.publicKeyRing);
+    }
+
+    @Benchmark
+    public PersonalKey loadPersonalKey() throws Exception {
+        return PersonalKey.load(mKeys.secretKeyRing, BenchmarkKeys.PASSPHRASE);
+    }
+
+    @Benchmark
+    public PersonalKey loadPersonalKeyWithCert() throws Exception {
+        return PersonalKey.load(mKeys.secretKeyRing, BenchmarkKeys.PASSPHRASE, mBridgeCert);
+    }
+
+    @Benchmark
+    public X509Certificate createBridgeCertificate() throws Exception {
+        return X509Bridge.createCertificate(mAuthKeyPair, mKeys.publicKeyRing);
+    }
+}
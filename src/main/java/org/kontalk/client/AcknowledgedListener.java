@@ -36,15 +36,19 @@ final class AcknowledgedListener implements StanzaListener {
     private static final Logger LOGGER = Logger.getLogger(AcknowledgedListener.class.getName());
 
     private final Control mControl;
+    private final OutboundQueue mOutbound;
 
-    public AcknowledgedListener(Control control) {
+    public AcknowledgedListener(Control control, OutboundQueue outbound) {
         mControl = control;
+        mOutbound = outbound;
     }
 
     @Override
     public void processStanza(Stanza p) {
         // NOTE: the packet is not the acknowledgement itself but the packet
         // that is acknowledged
+        mOutbound.onAcknowledged(p);
+
         if (!(p instanceof Message)) {
             // we are only interested in acks for messages
             return;
@@ -0,0 +1,61 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.Objects;
+
+import org.jivesoftware.smack.packet.ExtensionElement;
+
+/**
+ * Extension element wrapper that serializes the wrapped element only once.
+ *
+ * Used when the same (large) extension is sent in many cloned stanzas.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class CachedExtension implements ExtensionElement {
+
+    private final ExtensionElement mElement;
+
+    private String mNamespace = null;
+    private String mXML = null;
+
+    CachedExtension(ExtensionElement element) {
+        mElement = element;
+    }
+
+    @Override
+    public String getNamespace() {
+        return mElement.getNamespace();
+    }
+
+    @Override
+    public String getElementName() {
+        return mElement.getElementName();
+    }
+
+    @Override
+    public synchronized CharSequence toXML(String enclosingNamespace) {
+        if (mXML == null || !Objects.equals(mNamespace, enclosingNamespace)) {
+            mNamespace = enclosingNamespace;
+            mXML = mElement.toXML(enclosingNamespace).toString();
+        }
+        return mXML;
+    }
+}
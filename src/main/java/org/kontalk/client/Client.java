@@ -22,12 +22,13 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Date;
 import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,12 +44,20 @@ import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smack.roster.Roster;
 import org.jivesoftware.smack.roster.RosterEntry;
+import org.jivesoftware.smack.roster.packet.RosterPacket;
+import org.jivesoftware.smack.roster.rosterstore.DirectoryRosterStore;
+import org.jivesoftware.smack.roster.rosterstore.RosterStore;
 import org.jivesoftware.smackx.caps.EntityCapsManager;
 import org.jivesoftware.smackx.caps.cache.SimpleDirectoryPersistentCache;
+import org.jivesoftware.smackx.caps.packet.CapsExtension;
 import org.jivesoftware.smackx.chatstates.ChatState;
 import org.jivesoftware.smackx.chatstates.packet.ChatStateExtension;
+import org.jivesoftware.smackx.delay.packet.DelayInformation;
 import org.jivesoftware.smackx.disco.ServiceDiscoveryManager;
+import org.jivesoftware.smackx.forward.packet.Forwarded;
 import org.jivesoftware.smackx.iqlast.packet.LastActivity;
+import org.jivesoftware.smackx.mam.MamManager;
+import org.jivesoftware.smackx.mam.element.MamElements.MamResultExtension;
 import org.jxmpp.jid.EntityFullJid;
 import org.jxmpp.jid.Jid;
 import org.kontalk.crypto.PersonalKey;
@@ -65,37 +74,67 @@ import org.kontalk.util.MessageUtils.SendTask;
  *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
-public final class Client implements StanzaListener, Runnable {
+public final class Client implements StanzaListener {
     private static final Logger LOGGER = Logger.getLogger(Client.class.getName());
 
     private static final String CAPS_CACHE_DIR = "caps_cache";
-    private static final LinkedBlockingQueue<Task> TASK_QUEUE = new LinkedBlockingQueue<>();
+    private static final String ROSTER_STORE_DIR = "roster_store";
+    private static final String MAM_CHECKPOINT_FILE = "mam_checkpoint";
+    /** Timeout for roster requests (milliseconds). */
+    private static final long ROSTER_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
 
     public enum PresenceCommand {REQUEST, GRANT, DENY}
 
-    // NOTE: disconnect is instantaneous, all resulting exceptions should be catched
-    private enum Command {CONNECT, LAST_ACTIVITY}
-
     private final Control mControl;
+    private final TaskScheduler mScheduler;
 
     private final KonMessageSender mMessageSender;
-    private final EnumMap<FeatureDiscovery.Feature, JID> mFeatures;
+    private final ReceiptSender mReceiptSender;
+    private final OutboundQueue mOutbound;
+    private final FeatureCache mFeatureCache;
+    private final Path mRosterStoreDir;
+    private final MAMSync mMAMSync;
+
+    // replaced, never modified
+    private volatile EnumMap<FeatureDiscovery.Feature, JID> mFeatures;
 
     private KonConnection mConn = null;
     private AvatarSendReceiver mAvatarSendReceiver = null;
-    private HTTPFileSlotRequester mSlotRequester = null;
-    private FeatureDiscovery mFeatureDiscovery = null;
+    private volatile KonMessageListener mMessageListener = null;
+    private volatile HTTPFileSlotRequester mSlotRequester = null;
+    private volatile FeatureDiscovery mFeatureDiscovery = null;
 
     private Client(Control control, Path appDir) {
         mControl = control;
         //mLimited = limited;
+        mScheduler = new TaskScheduler();
 
         mMessageSender = new KonMessageSender(this);
+        mOutbound = new OutboundQueue(this::write,
+                () -> mConn != null && mConn.isSmEnabled());
+        mReceiptSender = new ReceiptSender(this);
 
         // enable Smack debugging (print raw XML packets)
         //SmackConfiguration.DEBUG = true;
 
         mFeatures = new EnumMap<>(FeatureDiscovery.Feature.class);
+        mFeatureCache = new FeatureCache(appDir);
+        mRosterStoreDir = appDir.resolve(ROSTER_STORE_DIR);
+        mMAMSync = new MAMSync(new MAMSync.Archive() {
+                    @Override
+                    public boolean isSupported() {
+                        return Client.this.isArchiveSupported();
+                    }
+                    @Override
+                    public Optional<MAMSync.Page> query(Optional<String> afterUID,
+                            Optional<Date> since, int max) {
+                        return Client.this.queryArchive(afterUID, since, max);
+                    }
+                },
+                (m, date, onProcessed) -> mMessageListener.processArchivedMessage(m, date, onProcessed),
+                appDir.resolve(MAM_CHECKPOINT_FILE),
+                mControl::getLastInMessageDate,
+                this::isSendQueueSaturated);
 
         // setting caps cache
         // NOTE: the cache is actually not used right now: only client entity requests (==full JIDs)
@@ -114,20 +153,23 @@ public final class Client implements StanzaListener, Runnable {
     }
 
     public static Client create(Control control, Path appDir) {
-        Client client = new Client(control, appDir);
-
-        Thread clientThread = new Thread(client, "Client Connector");
-        clientThread.setDaemon(true);
-        clientThread.start();
-
-        return client;
+        return new Client(control, appDir);
     }
 
     public void connect(PersonalKey key) {
+        if (mConn != null && mConn.isDisconnectedButSmResumptionPossible()) {
+            // connection was lost, try to resume stream on same connection
+            LOGGER.config("resuming...");
+            this.newStatus(Control.Status.CONNECTING);
+            mScheduler.submit(TaskScheduler.Lane.CONNECTION, this::connectAsync);
+            return;
+        }
+
         this.disconnect();
 
         LOGGER.config("connecting...");
         this.newStatus(Control.Status.CONNECTING);
+        mFeatures = new EnumMap<>(FeatureDiscovery.Feature.class);
 
         Config config = Config.getInstance();
         //String network = config.getString(KonConf.SERV_NET);
@@ -149,6 +191,10 @@ public final class Client implements StanzaListener, Runnable {
         Roster roster = Roster.getInstanceFor(mConn);
         // subscriptions handled by roster handler
         roster.setSubscriptionMode(Roster.SubscriptionMode.manual);
+        // roster versioning (XEP-0237): unchanged roster is loaded from store
+        RosterStore store = this.rosterStore(key);
+        if (store != null)
+            roster.setRosterStore(store);
 
         mAvatarSendReceiver = new AvatarSendReceiver(mConn, mControl.getAvatarHandler());
 
@@ -160,9 +206,9 @@ public final class Client implements StanzaListener, Runnable {
 
         StanzaFilter messageFilter = new StanzaTypeFilter(Message.class);
         // must be synchronized: we want to receive messages in the order they were sent
-        mConn.addSyncStanzaListener(
-                new KonMessageListener(this, mControl, mAvatarSendReceiver),
-                messageFilter);
+        // (only classified here, processing continues in parallel but ordered per sender)
+        mMessageListener = new KonMessageListener(this, mControl, mAvatarSendReceiver);
+        mConn.addSyncStanzaListener(mMessageListener, messageFilter);
 
         StanzaFilter vCardFilter = new StanzaTypeFilter(VCard4.class);
         mConn.addAsyncStanzaListener(new VCardListener(mControl), vCardFilter);
@@ -186,13 +232,29 @@ public final class Client implements StanzaListener, Runnable {
         }
 
         // listen to all ACKs
-        mConn.addStanzaAcknowledgedListener(new AcknowledgedListener(mControl));
+        mConn.addStanzaAcknowledgedListener(new AcknowledgedListener(mControl, mOutbound));
 
         // listen to all IQ errors
         mConn.addAsyncStanzaListener(this, IQTypeFilter.ERROR);
 
         // continue async
-        Client.TASK_QUEUE.offer(new Client.Task(Client.Command.CONNECT, new ArrayList<>(0)));
+        mScheduler.submit(TaskScheduler.Lane.CONNECTION, this::connectAsync);
+    }
+
+    /** Persistent roster store for the account of the key. */
+    private RosterStore rosterStore(PersonalKey key) {
+        File dir = mRosterStoreDir.resolve(key.getFingerprint()).toFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOGGER.warning("can't create roster store directory: "+dir);
+            return null;
+        }
+
+        RosterStore store = DirectoryRosterStore.open(dir);
+        if (store == null)
+            store = DirectoryRosterStore.init(dir);
+        if (store == null)
+            LOGGER.warning("can't open roster store: "+dir);
+        return store;
     }
 
     private void connectAsync() {
@@ -220,15 +282,32 @@ public final class Client implements StanzaListener, Runnable {
             }
         }
 
-        mFeatureDiscovery = new FeatureDiscovery(mConn);
+        if (mConn.streamWasResumed()) {
+            // nothing lost, no need for feature discovery and blocklist
+            LOGGER.info("stream resumed, replayed (unacknowledged) stanzas: "
+                    +mOutbound.unacknowledged());
+            this.newStatus(Control.Status.CONNECTED);
+            mReceiptSender.flush();
+            return;
+        }
 
-        mFeatures.clear();
-        mFeatures.putAll(mFeatureDiscovery.getServerFeatures());
+        mFeatureDiscovery = new FeatureDiscovery(mConn);
 
-        mSlotRequester = mFeatures.containsKey(FeatureDiscovery.Feature.HTTP_FILE_UPLOAD) ?
-                new HTTPFileSlotRequester(mConn,
-                        mFeatures.get(FeatureDiscovery.Feature.HTTP_FILE_UPLOAD)) :
-                null;
+        String cacheKey = this.featureCacheKey();
+        Optional<EnumMap<FeatureDiscovery.Feature, JID>> cached = mFeatureCache.get(cacheKey);
+        if (cached.isPresent()) {
+            // use now, check later
+            this.setFeatures(cached.get());
+            FeatureDiscovery discovery = mFeatureDiscovery;
+            mScheduler.submit(TaskScheduler.Lane.FEATURE_DISCOVERY,
+                    () -> this.revalidateFeatures(discovery, cacheKey));
+        } else {
+            // blocking
+            this.setFeatures(mFeatureDiscovery.getServerFeatures());
+            // empty if discovery failed, don't cache
+            if (!mFeatures.isEmpty())
+                mFeatureCache.put(cacheKey, mFeatures);
+        }
 
         // Caps, XEP-0115
         // NOTE: caps manager is automatically used by Smack
@@ -275,6 +354,101 @@ public final class Client implements StanzaListener, Runnable {
         this.newStatus(Control.Status.CONNECTED);
 
         this.sendBlocklistRequest();
+
+        // receipts queued while disconnected
+        mReceiptSender.flush();
+
+        // support is checked by sync thread
+        mMAMSync.start();
+    }
+
+    // called by MAM sync thread
+    private boolean isArchiveSupported() {
+        KonConnection conn = mConn;
+        if (conn == null)
+            return false;
+
+        try {
+            // blocking
+            return MamManager.getInstanceFor(conn).isSupported();
+        } catch (SmackException.NoResponseException |
+                XMPPException.XMPPErrorException |
+                SmackException.NotConnectedException ex) {
+            LOGGER.log(Level.WARNING, "can't check message archive support", ex);
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Optional<MAMSync.Page> queryArchive(Optional<String> afterUID,
+            Optional<Date> since, int max) {
+        KonConnection conn = mConn;
+        if (conn == null)
+            return Optional.empty();
+
+        MamManager.MamQueryArgs.Builder args = MamManager.MamQueryArgs.builder()
+                .setResultPageSizeTo(max);
+        afterUID.ifPresent(args::afterUid);
+        since.ifPresent(args::limitResultsSince);
+
+        MamManager.MamQuery query;
+        try {
+            // blocking
+            query = MamManager.getInstanceFor(conn).queryArchive(args.build());
+        } catch (SmackException.NoResponseException |
+                XMPPException.XMPPErrorException |
+                SmackException.NotConnectedException |
+                SmackException.NotLoggedInException ex) {
+            LOGGER.log(Level.WARNING, "can't query message archive", ex);
+            return Optional.empty();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+
+        List<MAMSync.Item> items = new ArrayList<>(query.getMessageCount());
+        for (MamResultExtension result : query.getMamResultExtensions()) {
+            Forwarded forwarded = result.getForwarded();
+            if (!(forwarded.getForwardedStanza() instanceof Message))
+                continue;
+            DelayInformation delay = forwarded.getDelayInformation();
+            items.add(new MAMSync.Item(result.getId(),
+                    (Message) forwarded.getForwardedStanza(),
+                    delay != null ? delay.getStamp() : new Date()));
+        }
+        return Optional.of(new MAMSync.Page(items, query.isComplete()));
+    }
+
+    private void setFeatures(EnumMap<FeatureDiscovery.Feature, JID> features) {
+        mFeatures = features;
+        mSlotRequester = features.containsKey(FeatureDiscovery.Feature.HTTP_FILE_UPLOAD) ?
+                new HTTPFileSlotRequester(mConn,
+                        features.get(FeatureDiscovery.Feature.HTTP_FILE_UPLOAD)) :
+                null;
+    }
+
+    private void revalidateFeatures(FeatureDiscovery discovery, String cacheKey) {
+        EnumMap<FeatureDiscovery.Feature, JID> features = discovery.getServerFeatures();
+        if (features.isEmpty() || !this.isConnected() || discovery != mFeatureDiscovery)
+            // failed or too late
+            return;
+
+        mFeatureCache.put(cacheKey, features);
+        if (features.equals(mFeatures))
+            return;
+
+        LOGGER.info("server features changed: "+features);
+        this.setFeatures(features);
+        mControl.onServerFeatures(this.getServerFeature());
+    }
+
+    /** Server domain and caps version (XEP-0115) if announced. */
+    private String featureCacheKey() {
+        String key = mConn.getServer();
+        CapsExtension caps = mConn.getFeature(CapsExtension.ELEMENT, CapsExtension.NAMESPACE);
+        return caps != null ? key+"#"+caps.getVer() : key;
     }
 
     public void disconnect() {
@@ -288,6 +462,11 @@ public final class Client implements StanzaListener, Runnable {
         return mConn != null && mConn.isAuthenticated();
     }
 
+    /** If the last connection was established by resuming the previous stream. */
+    public boolean streamWasResumed() {
+        return mConn != null && mConn.streamWasResumed();
+    }
+
     /** The full JID of the user currently logged in. */
     public Optional<JID> getOwnJID() {
         EntityFullJid user = mConn.getUser();
@@ -374,8 +553,8 @@ public final class Client implements StanzaListener, Runnable {
     }
 
     public void sendLastActivityRequest(JID jid) {
-        Client.TASK_QUEUE.offer(new Client.Task(Client.Command.LAST_ACTIVITY,
-                                                       Collections.singletonList(jid)));
+        mScheduler.submit(TaskScheduler.Lane.LAST_ACTIVITY,
+                () -> this.sendLastActivityRequestAsync(jid));
     }
 
     private void sendLastActivityRequestAsync(JID jid) {
@@ -394,20 +573,68 @@ public final class Client implements StanzaListener, Runnable {
         this.sendPacket(request);
     }
 
-    synchronized boolean sendPackets(Stanza[] stanzas) {
+    /** Send a delivery receipt (XEP-0184) for a received message, delayed. */
+    void sendReceipt(Jid to, String xmppID) {
+        mReceiptSender.queue(to, xmppID);
+    }
+
+    /**
+     * Queue stanzas for sending, not blocking.
+     * @return false if not connected or any stanza could not be queued
+     */
+    boolean sendPackets(Stanza[] stanzas) {
         boolean sent = true;
         for (Stanza s: stanzas)
             sent &= this.sendPacket(s);
         return sent;
     }
 
-    synchronized boolean sendPacket(Stanza p) {
-        if (mConn == null) {
+    /**
+     * Queue stanza for sending, not blocking for messages.
+     * Only for stanzas that do not need to be sent again if writing fails
+     * later, use {@link #sendPacketAsync} otherwise.
+     * @return false if not connected or the queue is full
+     */
+    boolean sendPacket(Stanza p) {
+        return this.sendPacketAsync(p).isPresent();
+    }
+
+    /**
+     * Queue stanza for sending and get the delivery status.
+     * @return empty if not connected or the queue is full
+     */
+    Optional<OutboundQueue.Delivery> sendPacketAsync(Stanza p) {
+        if (!this.isConnected()) {
+            LOGGER.warning("not connected");
+            return Optional.empty();
+        }
+
+        return mOutbound.offer(p);
+    }
+
+    /**
+     * If a stanza with this ID is queued for sending, or was written but not
+     * acknowledged by the server yet (and will be resent when the stream is
+     * resumed).
+     */
+    public boolean isSending(String stanzaID) {
+        return mOutbound.contains(stanzaID);
+    }
+
+    /** If outgoing stanzas are piling up. */
+    public boolean isSendQueueSaturated() {
+        return mOutbound.isSaturated();
+    }
+
+    // called by writer thread only
+    private boolean write(Stanza p) {
+        KonConnection conn = mConn;
+        if (conn == null) {
             LOGGER.warning("not connected");
             return false;
         }
 
-        return mConn.send(p);
+        return conn.send(p);
     }
 
     @Override
@@ -415,76 +642,78 @@ public final class Client implements StanzaListener, Runnable {
         LOGGER.warning("IQ error: "+packet);
     }
 
-    public boolean addToRoster(JID jid, String name) {
-        if (!this.isConnected()) {
-            LOGGER.info("not connected");
-            return false;
-        }
-
+    /**
+     * Add entry to roster and request presence subscription, not blocking.
+     * @return future completing with true on success
+     */
+    public CompletableFuture<Boolean> addToRoster(JID jid, String name) {
         if (!jid.isValid()) {
             LOGGER.warning("invalid JID: " + jid);
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
-        try {
-            // also sends presence subscription request
-            Roster.getInstanceFor(mConn).createEntry(jid.toBareSmack(), name,
-                    null);
-        } catch (SmackException.NotLoggedInException |
-                SmackException.NoResponseException |
-                XMPPException.XMPPErrorException |
-                SmackException.NotConnectedException |
-                InterruptedException ex) {
-            LOGGER.log(Level.WARNING, "can't add contact to roster", ex);
-            return false;
-        }
-        return true;
+        RosterPacket.Item item = new RosterPacket.Item(jid.toBareSmack(), name);
+        return this.sendRosterItem(item, "can't add contact to roster")
+                .thenApply(succ -> {
+                    if (succ)
+                        this.sendPresenceSubscription(jid, PresenceCommand.REQUEST);
+                    return succ;
+                });
     }
 
-    public boolean removeFromRoster(JID jid) {
+    /** Remove entry from roster, not blocking. */
+    public CompletableFuture<Boolean> removeFromRoster(JID jid) {
         if (!this.isConnected()) {
             LOGGER.info("not connected");
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
-        Roster roster = Roster.getInstanceFor(mConn);
-        RosterEntry entry = roster.getEntry(jid.toBareSmack());
+        RosterEntry entry = Roster.getInstanceFor(mConn).getEntry(jid.toBareSmack());
         if (entry == null) {
             LOGGER.info("can't find roster entry for jid: "+jid);
-            return true;
-        }
-        try {
-            // blocking
-            roster.removeEntry(entry);
-        } catch (SmackException.NotLoggedInException |
-                SmackException.NoResponseException |
-                XMPPException.XMPPErrorException |
-                SmackException.NotConnectedException |
-                InterruptedException ex) {
-            LOGGER.log(Level.WARNING, "can't remove contact from roster", ex);
-            return false;
+            return CompletableFuture.completedFuture(true);
         }
-        return true;
+
+        RosterPacket.Item item = new RosterPacket.Item(entry.getJid(), entry.getName());
+        item.setItemType(RosterPacket.ItemType.remove);
+        return this.sendRosterItem(item, "can't remove contact from roster");
     }
 
-    public void updateRosterEntry(JID jid, String newName) {
+    /** Change name of roster entry, not blocking. */
+    public CompletableFuture<Boolean> updateRosterEntry(JID jid, String newName) {
         if (!this.isConnected()) {
             LOGGER.info("not connected");
-            return;
+            return CompletableFuture.completedFuture(false);
         }
-        Roster roster = Roster.getInstanceFor(mConn);
-        RosterEntry entry = roster.getEntry(jid.toBareSmack());
+        RosterEntry entry = Roster.getInstanceFor(mConn).getEntry(jid.toBareSmack());
         if (entry == null) {
             LOGGER.warning("can't find roster entry for jid: "+jid);
-            return;
+            return CompletableFuture.completedFuture(false);
         }
-        try {
-            entry.setName(newName);
-        } catch (SmackException.NotConnectedException |
-                SmackException.NoResponseException |
-                XMPPException.XMPPErrorException |
-                InterruptedException ex) {
-            LOGGER.log(Level.WARNING, "can't set name for entry", ex);
+
+        RosterPacket.Item item = new RosterPacket.Item(entry.getJid(), newName);
+        entry.getGroups().forEach(g -> item.addGroupName(g.getName()));
+        return this.sendRosterItem(item, "can't set name for entry");
+    }
+
+    // roster set (RFC 6121), roster is updated by the server push
+    private CompletableFuture<Boolean> sendRosterItem(RosterPacket.Item item, String errorText) {
+        KonConnection conn = mConn;
+        if (conn == null || !this.isConnected()) {
+            LOGGER.info("not connected");
+            return CompletableFuture.completedFuture(false);
         }
+
+        RosterPacket packet = new RosterPacket();
+        packet.setType(IQ.Type.set);
+        packet.addRosterItem(item);
+        return conn.sendAsync(packet, ROSTER_TIMEOUT)
+                .handle((result, ex) -> {
+                    if (ex != null) {
+                        LOGGER.log(Level.WARNING, errorText+", jid: "+item.getJid(), ex);
+                        return false;
+                    }
+                    return true;
+                });
     }
 
     public void requestAvatar(JID jid, String id) {
@@ -535,8 +764,17 @@ public final class Client implements StanzaListener, Runnable {
     /* package internal*/
 
     void newStatus(Control.Status status) {
-        if (status != Control.Status.CONNECTED)
-            mFeatures.clear();
+        // connection state is kept if stream can be resumed
+        boolean resumable = mConn != null && mConn.isDisconnectedButSmResumptionPossible();
+        if (status != Control.Status.CONNECTED && !resumable)
+            mFeatures = new EnumMap<>(FeatureDiscovery.Feature.class);
+        if ((status == Control.Status.DISCONNECTED || status == Control.Status.ERROR)
+                && !resumable)
+            mOutbound.onDisconnected();
+        if (status != Control.Status.CONNECTED && status != Control.Status.CONNECTING) {
+            mMAMSync.stop();
+            mScheduler.onDisconnected();
+        }
 
         mControl.onStatusChange(status, this.getServerFeature());
     }
@@ -544,37 +782,4 @@ public final class Client implements StanzaListener, Runnable {
     void newException(KonException konException) {
         mControl.onException(konException);
     }
-
-    @Override
-    public void run() {
-        while (true) {
-            Task t;
-            try {
-                // blocking
-                t = TASK_QUEUE.take();
-            } catch (InterruptedException ex) {
-                LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
-                return;
-            }
-            switch (t.command) {
-                case CONNECT:
-                    this.connectAsync();
-                    break;
-                case LAST_ACTIVITY:
-                    this.sendLastActivityRequestAsync((JID) t.args.get(0));
-                    break;
-            }
-        }
-    }
-
-    private static class Task {
-
-        final Command command;
-        final List<?> args;
-
-        Task(Command c, List<?> a) {
-            command = c;
-            args = a;
-        }
-    }
 }
@@ -0,0 +1,138 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.kontalk.misc.JID;
+
+/**
+ * Persistent cache for discovered server features, shared across sessions.
+ *
+ * Entries are keyed by server domain and, if the server announces it with
+ * the stream features, the entity caps (XEP-0115) version hash. Entries
+ * older than the TTL are not returned.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class FeatureCache {
+    private static final Logger LOGGER = Logger.getLogger(FeatureCache.class.getName());
+
+    private static final String FILENAME = "feature_cache.json";
+    private static final long TTL = TimeUnit.DAYS.toMillis(1);
+
+    private static final String JSON_TIME = "time";
+    private static final String JSON_FEATURES = "features";
+
+    private static final class Entry {
+        final long time;
+        final EnumMap<FeatureDiscovery.Feature, JID> features;
+
+        Entry(long time, EnumMap<FeatureDiscovery.Feature, JID> features) {
+            this.time = time;
+            this.features = features;
+        }
+    }
+
+    private final Path mFile;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    FeatureCache(Path appDir) {
+        mFile = appDir.resolve(FILENAME);
+        this.load();
+    }
+
+    /** Cached features for key if not expired. */
+    synchronized Optional<EnumMap<FeatureDiscovery.Feature, JID>> get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null || System.currentTimeMillis() - entry.time > TTL)
+            return Optional.empty();
+        return Optional.of(new EnumMap<>(entry.features));
+    }
+
+    synchronized void put(String key, EnumMap<FeatureDiscovery.Feature, JID> features) {
+        mEntries.put(key, new Entry(System.currentTimeMillis(), new EnumMap<>(features)));
+        this.save();
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(mFile))
+            return;
+
+        Object obj;
+        try {
+            obj = JSONValue.parse(new String(Files.readAllBytes(mFile), StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't read cache file", ex);
+            return;
+        }
+        if (!(obj instanceof Map)) {
+            LOGGER.warning("invalid cache file");
+            return;
+        }
+
+        for (Map.Entry<?, ?> e : ((Map<?, ?>) obj).entrySet()) {
+            try {
+                Map<?, ?> map = (Map<?, ?>) e.getValue();
+                long time = (Long) map.get(JSON_TIME);
+                EnumMap<FeatureDiscovery.Feature, JID> features =
+                        new EnumMap<>(FeatureDiscovery.Feature.class);
+                for (Map.Entry<?, ?> f : ((Map<?, ?>) map.get(JSON_FEATURES)).entrySet()) {
+                    features.put(FeatureDiscovery.Feature.valueOf((String) f.getKey()),
+                            JID.full((String) f.getValue()));
+                }
+                mEntries.put((String) e.getKey(), new Entry(time, features));
+            } catch (ClassCastException | NullPointerException | IllegalArgumentException ex) {
+                LOGGER.log(Level.WARNING, "can't parse cache entry: "+e.getKey(), ex);
+            }
+        }
+    }
+
+    // using legacy lib, raw types extend Object
+    @SuppressWarnings("unchecked")
+    private void save() {
+        JSONObject json = new JSONObject();
+        mEntries.forEach((key, entry) -> {
+            JSONObject features = new JSONObject();
+            entry.features.forEach((f, jid) -> features.put(f.name(), jid.string()));
+            JSONObject e = new JSONObject();
+            e.put(JSON_TIME, entry.time);
+            e.put(JSON_FEATURES, features);
+            json.put(key, e);
+        });
+
+        try {
+            Files.write(mFile, json.toJSONString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't write cache file", ex);
+        }
+    }
+}
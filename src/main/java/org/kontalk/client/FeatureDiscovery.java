@@ -22,6 +22,13 @@ import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -41,6 +48,7 @@ import org.kontalk.misc.JID;
  *
  *  A cache is used for discovering each entity at most once. Assumption is that entity features
  *  do not change during a connection session.
+ *  Server features are additionally cached across sessions by the client (see FeatureCache).
  *
  *  NOTE: Caps (XEP-0115) and caps cache is unfortunately not supported with server entities.
  *  The "ver=..." identifier is send with presence stanzas and server obviously don't send them.
@@ -71,6 +79,18 @@ public final class FeatureDiscovery {
         FEATURE_MAP.put(LastActivity.NAMESPACE, Feature.LAST_ACTIVITY);
     }
 
+    /** Maximum number of concurrent item requests. */
+    private static final int ITEM_PARALLELISM = 4;
+    /** Overall time limit for discovering all server items (milliseconds). */
+    private static final long ITEM_TIMEOUT = 5000;
+
+    private static final ExecutorService ITEM_EXECUTOR =
+            Executors.newFixedThreadPool(ITEM_PARALLELISM, r -> {
+                Thread thread = new Thread(r, "Feature Discovery");
+                thread.setDaemon(true);
+                return thread;
+            });
+
     private final KonConnection mConn;
     // NOTE: ignoring resource
     private final Map<JID, EnumMap<Feature, JID>> mCache = new HashMap<>();
@@ -122,16 +142,54 @@ public final class FeatureDiscovery {
         }
 
         // 3. get features from server items
-        for (DiscoverItems.Item item: items.getItems()) {
-            EnumMap<Feature, JID> itemFeatures = discover(discoManager, JID.fromSmack(item.getEntityID()));
-            if (itemFeatures != null)
-                features.putAll(itemFeatures);
-        }
+        List<JID> entities = items.getItems().stream()
+                .map(item -> JID.fromSmack(item.getEntityID()))
+                .collect(Collectors.toList());
+        features.putAll(discoverAll(entities, e -> discover(discoManager, e), ITEM_TIMEOUT));
 
         LOGGER.info("supported server features: "+features);
         return features;
     }
 
+    /**
+     * Discover features of multiple entities concurrently and merge the
+     * results. Entities not responding within the timeout are ignored.
+     */
+    static EnumMap<Feature, JID> discoverAll(List<JID> entities,
+            Function<JID, EnumMap<Feature, JID>> discoverer,
+            long timeout) {
+        List<Callable<EnumMap<Feature, JID>>> tasks = entities.stream()
+                .map(e -> (Callable<EnumMap<Feature, JID>>) () -> discoverer.apply(e))
+                .collect(Collectors.toList());
+
+        List<Future<EnumMap<Feature, JID>>> results;
+        try {
+            // unfinished tasks are cancelled
+            results = ITEM_EXECUTOR.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, "interrupted", ex);
+            Thread.currentThread().interrupt();
+            return new EnumMap<>(Feature.class);
+        }
+
+        EnumMap<Feature, JID> features = new EnumMap<>(Feature.class);
+        for (int i = 0; i < results.size(); i++) {
+            Future<EnumMap<Feature, JID>> result = results.get(i);
+            if (result.isCancelled()) {
+                LOGGER.warning("no info in time for "+entities.get(i));
+                continue;
+            }
+            try {
+                EnumMap<Feature, JID> itemFeatures = result.get();
+                if (itemFeatures != null)
+                    features.putAll(itemFeatures);
+            } catch (InterruptedException | ExecutionException ex) {
+                LOGGER.log(Level.WARNING, "can't get info for "+entities.get(i), ex);
+            }
+        }
+        return features;
+    }
+
     private static EnumMap<Feature, JID> discover(ServiceDiscoveryManager dm, JID entity) {
         DiscoverInfo info;
         try {
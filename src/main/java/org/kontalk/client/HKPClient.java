@@ -19,22 +19,43 @@
 package org.kontalk.client;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 
 /**
  * Client for OpenPGP HTTP Keyserver Protocol.
  *
  * See https://tools.ietf.org/html/draft-shaw-openpgp-hkp-00
  *
+ * Lookups are asynchronous, concurrent lookups for the same key ID share
+ * one request. Results, including "not found", are cached persistently; the
+ * cache file is written shortly after changes and on shutdown.
+ *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
 public final class HKPClient {
@@ -44,61 +65,227 @@ public final class HKPClient {
     //private static final int DEFAULT_SSL_PORT = 443;
 
     private static final int MAX_CONTENT_LENGTH = 9001;
+    private static final int TIMEOUT = (int) TimeUnit.SECONDS.toMillis(15);
 
-    public String search(String server, String keyID) {
-        CloseableHttpClient client = HttpClients.createDefault();
-        HttpRequestBase get = new HttpGet(
-                "https://"+server+"/pks/lookup?op=get&options=mr&exact=on&search=0x"+keyID);
+    private static final String CACHE_FILENAME = "hkp_cache.json";
+    /** Time to keep found keys (milliseconds). */
+    private static final long FOUND_TTL = TimeUnit.DAYS.toMillis(7);
+    /** Time to keep "not found" results (milliseconds). */
+    private static final long NOT_FOUND_TTL = TimeUnit.DAYS.toMillis(1);
+    /** Delay before writing the changed cache (seconds). */
+    private static final long SAVE_DELAY = 10;
 
-        // execute request
-        CloseableHttpResponse response;
+    private static final String JSON_TIME = "time";
+    private static final String JSON_KEY = "key";
+
+    private static final class CacheEntry {
+        final long time;
+        /** Empty if not found. */
+        final String key;
+
+        CacheEntry(long time, String key) {
+            this.time = time;
+            this.key = key;
+        }
+
+        boolean isValid() {
+            long ttl = key.isEmpty() ? NOT_FOUND_TTL : FOUND_TTL;
+            return System.currentTimeMillis() - time < ttl;
+        }
+    }
+
+    private final CloseableHttpClient mHttpClient;
+    private final ScheduledExecutorService mExecutor;
+    private final Path mCacheFile;
+    // guarded by itself
+    private final Map<String, CacheEntry> mCache = new HashMap<>();
+    // guarded by mCache
+    private ScheduledFuture<?> mSaveTask = null;
+    // key ID -> running lookup
+    private final Map<String, CompletableFuture<String>> mLookups = new ConcurrentHashMap<>();
+
+    public HKPClient(Path appDir) {
+        PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager();
+        connManager.setMaxTotal(8);
+        connManager.setDefaultMaxPerRoute(2);
+        mHttpClient = HttpClients.custom()
+                .setConnectionManager(connManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(TIMEOUT)
+                        .setSocketTimeout(TIMEOUT)
+                        .build())
+                .build();
+        mExecutor = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "HKP Lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mCacheFile = appDir.resolve(CACHE_FILENAME);
+        this.loadCache();
+    }
+
+    /** Stop lookups and write the cache. */
+    public void shutDown() {
+        mExecutor.shutdownNow();
+        synchronized (mCache) {
+            if (mSaveTask != null)
+                mSaveTask.cancel(false);
+        }
+        this.saveCache();
         try {
-            response = client.execute(get);
+            mHttpClient.close();
         } catch (IOException ex) {
-            LOGGER.log(Level.WARNING, "can't execute request, server: "+server, ex);
-            return "";
+            LOGGER.log(Level.WARNING, "can't close HTTP client", ex);
         }
-        try {
+    }
+
+    /**
+     * Search for a key ID on the given servers, one after another.
+     * @return future completing with the ASCII-armored key, or empty string
+     * if not found
+     */
+    public CompletableFuture<String> lookup(List<String> servers, String keyID) {
+        synchronized (mCache) {
+            CacheEntry entry = mCache.get(keyID);
+            if (entry != null && entry.isValid()) {
+                LOGGER.config("cached, keyID="+keyID+", found: "+!entry.key.isEmpty());
+                return CompletableFuture.completedFuture(entry.key);
+            }
+        }
+
+        CompletableFuture<String> lookup = new CompletableFuture<>();
+        CompletableFuture<String> running = mLookups.putIfAbsent(keyID, lookup);
+        if (running != null)
+            // coalesce
+            return running;
+
+        mExecutor.execute(() -> {
+            String key = "";
+            try {
+                key = this.searchAll(servers, keyID);
+            } finally {
+                mLookups.remove(keyID, lookup);
+                lookup.complete(key);
+            }
+        });
+        return lookup;
+    }
+
+    private String searchAll(List<String> servers, String keyID) {
+        String foundKey = "";
+        boolean failed = false;
+        for (String server: servers) {
+            try {
+                foundKey = this.search(server, keyID);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "can't search, server: "+server, ex);
+                failed = true;
+                continue;
+            }
+            if (!foundKey.isEmpty())
+                break;
+        }
+
+        // don't remember "not found" if a server was not reachable
+        if (!foundKey.isEmpty() || !failed) {
+            synchronized (mCache) {
+                mCache.put(keyID, new CacheEntry(System.currentTimeMillis(), foundKey));
+                if (mSaveTask == null)
+                    mSaveTask = mExecutor.schedule(this::saveCache, SAVE_DELAY, TimeUnit.SECONDS);
+            }
+        }
+        return foundKey;
+    }
+
+    /**
+     * Blocking key search on one server.
+     * @param server host name, or base URL with scheme
+     * @return the key or empty string if not found
+     * @throws IOException if the server is not reachable or the response is
+     * invalid
+     */
+    String search(String server, String keyID) throws IOException {
+        String base = server.contains("://") ? server : "https://"+server;
+        HttpRequestBase get = new HttpGet(
+                base+"/pks/lookup?op=get&options=mr&exact=on&search=0x"+keyID);
+
+        // execute request
+        try (CloseableHttpResponse response = mHttpClient.execute(get)) {
             int code = response.getStatusLine().getStatusCode();
             if (code != HttpStatus.SC_OK) {
                 if (code == HttpStatus.SC_NOT_FOUND) {
                     LOGGER.config("key not found, server: "+server+"; keyID="+keyID);
-                } else {
-                    LOGGER.warning("unexpected response, server: "+server+"; code=" + code);
+                    return "";
                 }
-                return "";
+                throw new IOException("unexpected response, server: "+server+"; code=" + code);
             }
 
             HttpEntity entity = response.getEntity();
-            if (entity == null) {
-                LOGGER.warning("no download response entity");
-                return "";
-            }
+            if (entity == null)
+                throw new IOException("no download response entity");
 
             if (entity.getContentLength() > MAX_CONTENT_LENGTH) {
                 LOGGER.warning("content too big");
                 return "";
             }
 
-            String contentStr;
             try {
-                contentStr = IOUtils.toString(entity.getContent(), "UTF-8");
-            } catch (IOException | IllegalStateException ex) {
-                LOGGER.log(Level.WARNING, " can't read content", ex);
-                return "";
+                return IOUtils.toString(entity.getContent(), "UTF-8");
+            } catch (IllegalStateException ex) {
+                throw new IOException("can't read content", ex);
             }
+        }
+    }
 
-    //        for (Header h: response.getAllHeaders()) {
-    //            System.out.println("header: "+h);
-    //        }
+    private void loadCache() {
+        if (!Files.isRegularFile(mCacheFile))
+            return;
 
-            return contentStr;
-        } finally {
+        Object obj;
+        try {
+            obj = JSONValue.parse(new String(Files.readAllBytes(mCacheFile), StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't read cache file", ex);
+            return;
+        }
+        if (!(obj instanceof Map)) {
+            LOGGER.warning("invalid cache file");
+            return;
+        }
+
+        for (Map.Entry<?, ?> e : ((Map<?, ?>) obj).entrySet()) {
             try {
-                response.close();
-            } catch (IOException ex) {
-                LOGGER.log(Level.WARNING, "can't close response", ex);
+                Map<?, ?> map = (Map<?, ?>) e.getValue();
+                CacheEntry entry = new CacheEntry((Long) map.get(JSON_TIME),
+                        (String) map.get(JSON_KEY));
+                if (entry.key != null && entry.isValid())
+                    mCache.put((String) e.getKey(), entry);
+            } catch (ClassCastException | NullPointerException ex) {
+                LOGGER.log(Level.WARNING, "can't parse cache entry: "+e.getKey(), ex);
             }
         }
     }
+
+    // using legacy lib, raw types extend Object
+    @SuppressWarnings("unchecked")
+    private synchronized void saveCache() {
+        JSONObject json = new JSONObject();
+        synchronized (mCache) {
+            mSaveTask = null;
+            mCache.forEach((keyID, entry) -> {
+                if (!entry.isValid())
+                    return;
+                JSONObject e = new JSONObject();
+                e.put(JSON_TIME, entry.time);
+                e.put(JSON_KEY, entry.key);
+                json.put(keyID, e);
+            });
+        }
+
+        try {
+            Files.write(mCacheFile, json.toJSONString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't write cache file", ex);
+        }
+    }
 }
@@ -23,6 +23,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -49,6 +50,7 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
@@ -210,6 +212,29 @@ public class HTTPFileClient {
      */
     public synchronized void upload(File file, URI uploadURL, String mime, boolean encrypted)
             throws KonException {
+        try(FileInputStream in = new FileInputStream(file)) {
+            this.upload(new InputStreamEntity(in, file.length()), uploadURL, mime, encrypted);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't read file", ex);
+            throw new KonException(KonException.Error.UPLOAD_EXECUTE);
+        }
+    }
+
+    /**
+     * Upload data written by a writer using a PUT request with chunked
+     * transfer encoding. The content length does not need to be known in
+     * advance, the data is streamed while it is produced.
+     */
+    public synchronized void upload(ContentWriter writer, URI uploadURL, String mime,
+            boolean encrypted)
+            throws KonException {
+        EntityTemplate entity = new EntityTemplate(writer::writeTo);
+        entity.setChunked(true);
+        this.upload(entity, uploadURL, mime, encrypted);
+    }
+
+    private void upload(HttpEntity entity, URI uploadURL, String mime, boolean encrypted)
+            throws KonException {
 
         if (mHTTPClient == null) {
             mHTTPClient = httpClientOrNull(mPrivateKey, mCertificate, mValidateCertificate);
@@ -228,11 +253,9 @@ public class HTTPFileClient {
         // execute request
         CloseableHttpResponse response = null;
         try {
-            try(FileInputStream in = new FileInputStream(file)) {
-                req.setEntity(new InputStreamEntity(in, file.length()));
-
-                mCurrentRequest = req;
-
+            req.setEntity(entity);
+            mCurrentRequest = req;
+            try {
                 //response = execute(currentRequest);
                 response = mHTTPClient.execute(mCurrentRequest);
             } catch (IOException ex) {
@@ -303,4 +326,9 @@ public class HTTPFileClient {
     public interface ProgressListener {
         void updateProgress(int percent);
     }
+
+    /** Producer of upload data written directly to the request stream. */
+    public interface ContentWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
 }
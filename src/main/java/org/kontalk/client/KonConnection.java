@@ -30,6 +30,7 @@ import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -57,6 +58,8 @@ final class KonConnection extends XMPPTCPConnection {
     private static final Logger LOGGER = Logger.getLogger(KonConnection.class.getName());
 
     private static final String RESSOURCE = "Kontalk_Desktop";
+    /** Requested maximum time for stream resumption (seconds). */
+    private static final int RESUMPTION_TIME = 300;
 
     public KonConnection(EndpointServer server, boolean validateCertificate) {
         this(server, null, null, validateCertificate);
@@ -76,9 +79,10 @@ final class KonConnection extends XMPPTCPConnection {
         // blacklist PLAIN mechanism
         SASLAuthentication.blacklistSASLMechanism("PLAIN");
 
-        // enable SM without resumption (XEP-0198)
+        // enable SM with resumption (XEP-0198)
         this.setUseStreamManagement(true);
-        this.setUseStreamManagementResumption(false);
+        this.setUseStreamManagementResumption(true);
+        this.setPreferredResumptionTime(RESUMPTION_TIME);
     }
 
     private static XMPPTCPConnectionConfiguration buildConfiguration(
@@ -167,6 +171,15 @@ final class KonConnection extends XMPPTCPConnection {
         return true;
     }
 
+    /** Send IQ request, the future completes with the result or fails. */
+    CompletableFuture<IQ> sendAsync(IQ request, long timeout) {
+        CompletableFuture<IQ> future = new CompletableFuture<>();
+        super.sendIqRequestAsync(request, timeout)
+                .onSuccess(future::complete)
+                .onError(future::completeExceptionally);
+        return future;
+    }
+
     void sendWithCallback(IQ packet, SuccessCallback<IQ> callback) {
         super.sendIqRequestAsync(packet)
                 .onSuccess(callback)
@@ -162,16 +162,39 @@ final class KonMessageListener implements StanzaListener {
             return;
         }
 
-        // add message
-        mControl.onNewInMessage(ids, Optional.ofNullable(delayDate), content);
-
-        // send a 'received' for a receipt request (XEP-0184)
+        // add message, send a 'received' for a receipt request (XEP-0184) when done
         DeliveryReceiptRequest request = DeliveryReceiptRequest.from(m);
-        if (request != null && !ids.xmppID.isEmpty()) {
-            Message received = new Message(m.getFrom(), Message.Type.chat);
-            received.addExtension(new DeliveryReceipt(ids.xmppID));
-            mClient.sendPacket(received);
+        Runnable onProcessed = request != null && !ids.xmppID.isEmpty() ?
+                () -> this.sendReceipt(m, ids) :
+                () -> {};
+        mControl.onNewInMessage(ids, Optional.ofNullable(delayDate), content, onProcessed);
+    }
+
+    /**
+     * Process a message from the server archive (XEP-0313). Only new
+     * incoming content is handled, no receipts and chat states.
+     */
+    void processArchivedMessage(Message m, Date date, Runnable onProcessed) {
+        JID myJID = mClient.getOwnJID().orElse(null);
+        if (m.getType() != Message.Type.chat ||
+                DeliveryReceipt.from(m) != null ||
+                (myJID != null && JID.fromSmack(m.getFrom()).toBare().equals(myJID.toBare()))) {
+            // NOTE: own sent messages are only encrypted for the receiver
+            onProcessed.run();
+            return;
+        }
+
+        MessageContent content = ClientUtils.parseMessageContent(m, false);
+        if (content.isEmpty()) {
+            onProcessed.run();
+            return;
         }
+
+        mControl.onNewInMessage(MessageIDs.from(m), Optional.of(date), content, onProcessed);
+    }
+
+    private void sendReceipt(Message m, MessageIDs ids) {
+        mClient.sendReceipt(m.getFrom(), ids.xmppID);
     }
 
     private void processHeadlineMessage(Message m) {
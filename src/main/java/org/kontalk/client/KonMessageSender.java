@@ -111,6 +111,10 @@ public final class KonMessageSender {
         if (task.sendChatState)
             smackMessage.addExtension(new ChatStateExtension(ChatState.active));
 
+        List<JID> JIDs = message.getTransmissions().stream()
+                .map(Transmission::getJID)
+                .collect(Collectors.toList());
+
         if (encrypted) {
             String encryptedData = task.getEncryptedData();
             if (encryptedData.isEmpty()) {
@@ -126,13 +130,12 @@ public final class KonMessageSender {
                     LOGGER.warning("unknown encryption: " + task.encryption);
                     return false;
             }
+            if (JIDs.size() > 1)
+                // the same payload is serialized for each receiver
+                encryptionExtension = new CachedExtension(encryptionExtension);
             smackMessage.addExtension(encryptionExtension);
         }
 
-        List<JID> JIDs = message.getTransmissions().stream()
-                .map(Transmission::getJID)
-                .collect(Collectors.toList());
-
         if (JIDs.size() > 1 && multiAddressHost.isPresent()) {
             // send one message to multiple receiver using XEP-0033
             smackMessage.setTo(multiAddressHost.get());
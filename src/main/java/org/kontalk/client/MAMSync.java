@@ -0,0 +1,238 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.packet.Message;
+
+/**
+ * History synchronization with Message Archive Management (XEP-0313).
+ *
+ * Pages through the archive (with Result Set Management, XEP-0059) and
+ * passes each archived message to the normal incoming message processing.
+ * After all messages of a page are processed, the archive ID of the last
+ * message is saved as checkpoint, an interrupted sync resumes from there.
+ * Without checkpoint (first sync) only messages since the newest known
+ * message are synchronized, the whole archive only if there is none.
+ *
+ * Only one page is processed at a time and the sync pauses between pages
+ * and while the client is busy, live traffic has priority.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class MAMSync {
+    private static final Logger LOGGER = Logger.getLogger(MAMSync.class.getName());
+
+    static final int PAGE_SIZE = 250;
+    /** Default pause between two pages (milliseconds). */
+    private static final long PAGE_DELAY = 500;
+    /** Maximum time for processing one page (milliseconds). */
+    private static final long PAGE_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+    /** One archived message. */
+    static final class Item {
+        /** Archive ID. */
+        final String uid;
+        final Message message;
+        final Date date;
+
+        Item(String uid, Message message, Date date) {
+            this.uid = uid;
+            this.message = message;
+            this.date = date;
+        }
+    }
+
+    static final class Page {
+        final List<Item> items;
+        /** If this is the last page. */
+        final boolean complete;
+
+        Page(List<Item> items, boolean complete) {
+            this.items = Collections.unmodifiableList(items);
+            this.complete = complete;
+        }
+    }
+
+    interface Archive {
+        /** If the server supports the archive; may block. */
+        default boolean isSupported() {
+            return true;
+        }
+
+        /**
+         * Query a page of the archive.
+         * @param afterUID start after this archive ID, from the beginning
+         * if empty
+         * @param since only messages at or after this date, all if empty
+         * @return empty on error
+         */
+        Optional<Page> query(Optional<String> afterUID, Optional<Date> since, int max);
+    }
+
+    interface Processor {
+        /**
+         * Process message, run callback when done and the message is
+         * committed to the database (also if the message was dropped).
+         * The callback is not run if the message could not be saved.
+         */
+        void process(Message message, Date date, Runnable onProcessed);
+    }
+
+    private final Archive mArchive;
+    private final Processor mProcessor;
+    private final Path mCheckpointFile;
+    private final Supplier<Optional<Date>> mLastKnown;
+    private final BooleanSupplier mBusy;
+    private final long mPageDelay;
+
+    // guarded by this
+    private Thread mThread = null;
+
+    /**
+     * @param lastKnown date of the newest message already saved, if any
+     * @param busy if sync should wait before the next page
+     */
+    MAMSync(Archive archive, Processor processor, Path checkpointFile,
+            Supplier<Optional<Date>> lastKnown, BooleanSupplier busy) {
+        this(archive, processor, checkpointFile, lastKnown, busy, PAGE_DELAY);
+    }
+
+    MAMSync(Archive archive, Processor processor, Path checkpointFile,
+            Supplier<Optional<Date>> lastKnown, BooleanSupplier busy, long pageDelay) {
+        mArchive = archive;
+        mProcessor = processor;
+        mCheckpointFile = checkpointFile;
+        mLastKnown = lastKnown;
+        mBusy = busy;
+        mPageDelay = pageDelay;
+    }
+
+    /** Start sync in background, if not already running. */
+    synchronized void start() {
+        if (mThread != null && mThread.isAlive())
+            return;
+
+        mThread = new Thread(this::sync, "MAM Sync");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** Stop running sync, e.g. on disconnect. */
+    synchronized void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Synchronize all messages after checkpoint, blocking.
+     * @return true if the end of the archive was reached
+     */
+    boolean sync() {
+        // blocking
+        if (!mArchive.isSupported()) {
+            LOGGER.info("message archive not supported");
+            return false;
+        }
+
+        Optional<String> checkpoint = this.loadCheckpoint();
+        // no checkpoint: don't download messages that are already saved
+        Optional<Date> since = checkpoint.isPresent() ?
+                Optional.empty() :
+                mLastKnown.get();
+        LOGGER.info("starting after: "+checkpoint.orElse("<beginning>")
+                +", since: "+since.map(Date::toString).orElse("<beginning>"));
+        long start = System.currentTimeMillis();
+        int total = 0;
+        try {
+            while (true) {
+                while (mBusy.getAsBoolean())
+                    Thread.sleep(Math.max(mPageDelay, 1));
+
+                Page page = mArchive.query(checkpoint, since, PAGE_SIZE).orElse(null);
+                if (page == null)
+                    return false;
+
+                if (!page.items.isEmpty()) {
+                    CountDownLatch processed = new CountDownLatch(page.items.size());
+                    for (Item item : page.items)
+                        mProcessor.process(item.message, item.date, processed::countDown);
+
+                    if (!processed.await(PAGE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        LOGGER.warning("page not processed in time, stopping");
+                        return false;
+                    }
+
+                    // all messages of the page are committed
+                    checkpoint = Optional.of(page.items.get(page.items.size() - 1).uid);
+                    this.saveCheckpoint(checkpoint.get());
+                    total += page.items.size();
+                    LOGGER.config("synced: "+total);
+                }
+
+                if (page.complete || page.items.isEmpty())
+                    break;
+
+                Thread.sleep(mPageDelay);
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.info("interrupted, synced: "+total);
+            return false;
+        }
+
+        LOGGER.info("done, synced: "+total+", time ms: "+(System.currentTimeMillis() - start));
+        return true;
+    }
+
+    private Optional<String> loadCheckpoint() {
+        if (!Files.isRegularFile(mCheckpointFile))
+            return Optional.empty();
+        try {
+            String uid = new String(Files.readAllBytes(mCheckpointFile), StandardCharsets.UTF_8).trim();
+            return uid.isEmpty() ? Optional.empty() : Optional.of(uid);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't read checkpoint", ex);
+            return Optional.empty();
+        }
+    }
+
+    private void saveCheckpoint(String uid) {
+        try {
+            Files.write(mCheckpointFile, uid.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't write checkpoint", ex);
+        }
+    }
+}
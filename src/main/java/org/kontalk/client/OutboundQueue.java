@@ -0,0 +1,251 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smackx.chatstates.packet.ChatStateExtension;
+import org.jivesoftware.smackx.receipts.DeliveryReceipt;
+
+/**
+ * Queue for all outgoing stanzas, written to the connection by one dedicated
+ * thread. Callers never block on the socket.
+ *
+ * Receipts and chat states are written before all other stanzas, everything
+ * else is written in the order it was queued. The queue is bounded: offering
+ * a message to a full queue fails at once, offering other stanzas (presence,
+ * IQs) waits a limited time for space.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class OutboundQueue {
+    private static final Logger LOGGER = Logger.getLogger(OutboundQueue.class.getName());
+
+    private static final int CAPACITY = 1000;
+    /** Log metrics after this many written stanzas. */
+    private static final int METRICS_INTERVAL = 500;
+    /** Maximum time offering a non-message stanza waits for space (seconds). */
+    private static final int MAX_OFFER_WAIT = 2;
+
+    enum Priority {
+        /** Receipts and chat states without content. */
+        HIGH,
+        /** Everything else: messages with content, presence, IQs. */
+        NORMAL;
+
+        static Priority of(Stanza p) {
+            if (!(p instanceof Message) || ((Message) p).getBody() != null)
+                return NORMAL;
+            return p.hasExtension(DeliveryReceipt.ELEMENT, DeliveryReceipt.NAMESPACE) ||
+                    p.hasExtension(ChatStateExtension.NAMESPACE) ?
+                    HIGH :
+                    NORMAL;
+        }
+    }
+
+    /** Delivery status of one stanza. */
+    static final class Delivery {
+        /** Completed when written to connection; false if not connected. */
+        final CompletableFuture<Boolean> written = new CompletableFuture<>();
+        /**
+         * Completed when acknowledged by server (Stream Management,
+         * XEP-0198); exceptionally if the connection was closed before.
+         * Never completed if stream management is not enabled.
+         */
+        final CompletableFuture<Void> acknowledged = new CompletableFuture<>();
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final Stanza stanza;
+        final Priority priority;
+        final long seq;
+        final long enqueued = System.nanoTime();
+        final Delivery delivery = new Delivery();
+
+        Entry(Stanza stanza, Priority priority, long seq) {
+            this.stanza = stanza;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = priority.compareTo(o.priority);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    private final Predicate<Stanza> mWriter;
+    private final BooleanSupplier mAckEnabled;
+    private final PriorityBlockingQueue<Entry> mQueue = new PriorityBlockingQueue<>();
+    private final Semaphore mCapacity = new Semaphore(CAPACITY);
+    private final AtomicLong mSeq = new AtomicLong();
+    // stanza ID -> delivery, waiting for server ack
+    private final Map<String, Delivery> mUnacked = new ConcurrentHashMap<>();
+
+    // metrics, updated by writer thread
+    private final AtomicLong mWritten = new AtomicLong();
+    private final AtomicLong mTotalAgeNanos = new AtomicLong();
+    private final AtomicLong mMaxAgeNanos = new AtomicLong();
+    private final long mStartNanos = System.nanoTime();
+
+    /**
+     * @param writer writes one stanza to the connection, false if not
+     * connected
+     * @param ackEnabled if server acks are expected for written stanzas
+     */
+    OutboundQueue(Predicate<Stanza> writer, BooleanSupplier ackEnabled) {
+        mWriter = writer;
+        mAckEnabled = ackEnabled;
+
+        Thread thread = new Thread(this::run, "Outbound Writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Optional<Delivery> offer(Stanza p) {
+        return this.offer(p, Priority.of(p));
+    }
+
+    /**
+     * Queue stanza for sending. Returns immediately for messages, other
+     * stanzas wait a limited time if the queue is full.
+     * @return empty if the queue is full
+     */
+    Optional<Delivery> offer(Stanza p, Priority priority) {
+        if (!this.acquire(p)) {
+            LOGGER.warning("queue full, dropping stanza, ID: "+p.getStanzaId());
+            return Optional.empty();
+        }
+        Entry entry = new Entry(p, priority, mSeq.getAndIncrement());
+        mQueue.add(entry);
+        return Optional.of(entry.delivery);
+    }
+
+    private boolean acquire(Stanza p) {
+        if (mCapacity.tryAcquire())
+            return true;
+        // message senders handle failing and try again later
+        if (p instanceof Message)
+            return false;
+
+        LOGGER.config("queue full, waiting, ID: "+p.getStanzaId());
+        try {
+            return mCapacity.tryAcquire(MAX_OFFER_WAIT, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, "interrupted while waiting", ex);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** If the queue is almost full and callers should slow down. */
+    boolean isSaturated() {
+        return mCapacity.availablePermits() < CAPACITY / 10;
+    }
+
+    int size() {
+        return CAPACITY - mCapacity.availablePermits();
+    }
+
+    /** Number of written stanzas waiting for server ack. */
+    int unacknowledged() {
+        return mUnacked.size();
+    }
+
+    /** If the stanza is queued, or written and waiting for server ack. */
+    boolean contains(String stanzaID) {
+        return mUnacked.containsKey(stanzaID) ||
+                mQueue.stream().anyMatch(e -> stanzaID.equals(e.stanza.getStanzaId()));
+    }
+
+    void onAcknowledged(Stanza p) {
+        String id = p.getStanzaId();
+        Delivery delivery = id != null ? mUnacked.remove(id) : null;
+        if (delivery != null)
+            delivery.acknowledged.complete(null);
+    }
+
+    /** Connection closed, pending acks won't arrive anymore. */
+    void onDisconnected() {
+        mUnacked.values().forEach(d ->
+                d.acknowledged.completeExceptionally(new IllegalStateException("disconnected")));
+        mUnacked.clear();
+    }
+
+    String metrics() {
+        long written = mWritten.get();
+        long seconds = Math.max(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - mStartNanos), 1);
+        return "written="+written
+                +", per second="+(written / seconds)
+                +", queued="+this.size()
+                +", unacked="+mUnacked.size()
+                +", avg age us="+(written == 0 ? 0 :
+                        TimeUnit.NANOSECONDS.toMicros(mTotalAgeNanos.get() / written))
+                +", max age us="+TimeUnit.NANOSECONDS.toMicros(mMaxAgeNanos.get());
+    }
+
+    private void run() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = mQueue.take();
+            } catch (InterruptedException ex) {
+                LOGGER.log(Level.WARNING, "interrupted", ex);
+                return;
+            }
+            mCapacity.release();
+
+            long age = System.nanoTime() - entry.enqueued;
+            mTotalAgeNanos.addAndGet(age);
+            mMaxAgeNanos.accumulateAndGet(age, Math::max);
+
+            boolean written;
+            try {
+                String id = entry.stanza.getStanzaId();
+                boolean ack = id != null && mAckEnabled.getAsBoolean();
+                if (ack)
+                    mUnacked.put(id, entry.delivery);
+                written = mWriter.test(entry.stanza);
+                if (!written && ack)
+                    mUnacked.remove(id);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "can't write stanza", ex);
+                written = false;
+            }
+            entry.delivery.written.complete(written);
+
+            if (mWritten.incrementAndGet() % METRICS_INTERVAL == 0)
+                LOGGER.config("metrics: "+this.metrics());
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smackx.receipts.DeliveryReceipt;
+import org.jxmpp.jid.Jid;
+
+/**
+ * Queue for outgoing delivery receipts (XEP-0184).
+ *
+ * Receipts are send in batches after a short delay, or at once if the queue
+ * is full. Receipts for the same message are only send once. Unsent receipts
+ * are kept while disconnected and send after the next login; they are only
+ * kept in memory, not across restarts (the server delivers the messages
+ * again then).
+ *
+ * Each receipt is send as its own message stanza, XEP-0184 has one receipt
+ * per message.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class ReceiptSender {
+    private static final Logger LOGGER = Logger.getLogger(ReceiptSender.class.getName());
+
+    /** Delay before sending queued receipts (milliseconds). */
+    private static final long FLUSH_DELAY = 250;
+    /** Delay before sending receipts again that could not be send (milliseconds). */
+    private static final long RETRY_DELAY = 5000;
+    private static final int MAX_BATCH_SIZE = 50;
+
+    private final Client mClient;
+    private final ScheduledExecutorService mTimer;
+
+    // XMPP message ID -> receiver; guarded by this
+    private final Map<String, Jid> mQueue = new LinkedHashMap<>();
+    private ScheduledFuture<?> mFlush = null;
+
+    ReceiptSender(Client client) {
+        mClient = client;
+        mTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Receipt Sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Queue a receipt for a received message. */
+    synchronized void queue(Jid to, String xmppID) {
+        if (mQueue.putIfAbsent(xmppID, to) != null) {
+            LOGGER.config("duplicate receipt: "+xmppID);
+            return;
+        }
+
+        if (mQueue.size() >= MAX_BATCH_SIZE) {
+            this.schedule(0);
+        } else if (mFlush == null) {
+            this.schedule(FLUSH_DELAY);
+        }
+    }
+
+    /** Send all queued receipts now (asynchronous). */
+    synchronized void flush() {
+        if (!mQueue.isEmpty())
+            this.schedule(0);
+    }
+
+    private void schedule(long delay) {
+        if (mFlush != null)
+            mFlush.cancel(false);
+        mFlush = mTimer.schedule(this::send, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void send() {
+        List<Map.Entry<String, Jid>> batch;
+        synchronized (this) {
+            mFlush = null;
+            if (!mClient.isConnected()) {
+                // try again after login
+                LOGGER.config("not connected, receipts: "+mQueue.size());
+                return;
+            }
+            batch = new ArrayList<>(mQueue.entrySet());
+            mQueue.clear();
+        }
+
+        int queued = 0;
+        for (Map.Entry<String, Jid> e : batch) {
+            Message received = new Message(e.getValue(), Message.Type.chat);
+            received.addExtension(new DeliveryReceipt(e.getKey()));
+            OutboundQueue.Delivery delivery = mClient.sendPacketAsync(received).orElse(null);
+            if (delivery == null) {
+                this.requeue(e);
+                continue;
+            }
+            queued++;
+            // writing may still fail, e.g. if the connection is lost meanwhile
+            delivery.written.thenAccept(written -> {
+                if (!written)
+                    this.requeue(e);
+            });
+        }
+        LOGGER.config("queued receipts: "+queued+"/"+batch.size());
+    }
+
+    /** Keep receipt for the next try. */
+    private synchronized void requeue(Map.Entry<String, Jid> e) {
+        mQueue.putIfAbsent(e.getKey(), e.getValue());
+        if (mFlush == null)
+            this.schedule(RETRY_DELAY);
+    }
+}
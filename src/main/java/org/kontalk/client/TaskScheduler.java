@@ -0,0 +1,168 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Scheduler for blocking client tasks.
+ *
+ * Each lane has its own queue and worker thread, so connection control
+ * never waits behind other tasks; there is no priority within a lane. Tasks
+ * of some lanes are dropped on disconnect or when they waited longer than the
+ * lane deadline. The deadline is only checked when the task is taken from
+ * the queue: an expired task is not run, but it stays queued until the
+ * tasks before it are done.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class TaskScheduler {
+    private static final Logger LOGGER = Logger.getLogger(TaskScheduler.class.getName());
+
+    enum Lane {
+        /** Connect/login; a queued task is replaced by a newer one, never cancelled. */
+        CONNECTION(0, false, true),
+        /** Checking cached server features after login. */
+        FEATURE_DISCOVERY(TimeUnit.SECONDS.toMillis(60), true, false),
+        LAST_ACTIVITY(TimeUnit.SECONDS.toMillis(30), true, false);
+
+        /** Maximum waiting time (milliseconds), 0 for none. */
+        final long deadline;
+        final boolean cancelOnDisconnect;
+        /** Only the newest task is kept queued. */
+        final boolean replaceQueued;
+
+        Lane(long deadline, boolean cancelOnDisconnect, boolean replaceQueued) {
+            this.deadline = deadline;
+            this.cancelOnDisconnect = cancelOnDisconnect;
+            this.replaceQueued = replaceQueued;
+        }
+    }
+
+    private static final class Task {
+        final Runnable runnable;
+        final long enqueued = System.currentTimeMillis();
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    private final class LaneQueue {
+        final Lane lane;
+        final LinkedBlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+        final AtomicLong executed = new AtomicLong();
+        final AtomicLong expired = new AtomicLong();
+        final AtomicLong cancelled = new AtomicLong();
+        final AtomicLong replaced = new AtomicLong();
+        final AtomicLong waitMillis = new AtomicLong();
+
+        LaneQueue(Lane lane) {
+            this.lane = lane;
+            Thread thread = new Thread(this::run, "Client Tasks "+lane);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void run() {
+            while (true) {
+                Task t;
+                try {
+                    // blocking
+                    t = queue.take();
+                } catch (InterruptedException ex) {
+                    LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
+                    return;
+                }
+
+                long wait = System.currentTimeMillis() - t.enqueued;
+                if (lane.deadline > 0 && wait > lane.deadline) {
+                    expired.incrementAndGet();
+                    continue;
+                }
+                waitMillis.addAndGet(wait);
+                executed.incrementAndGet();
+
+                try {
+                    t.runnable.run();
+                } catch (RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "task failed, lane: "+lane, ex);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            long exec = executed.get();
+            return lane+"{queued="+queue.size()
+                    +", executed="+exec
+                    +", expired="+expired.get()
+                    +", cancelled="+cancelled.get()
+                    +", replaced="+replaced.get()
+                    +", avg wait ms="+(exec == 0 ? 0 : waitMillis.get() / exec)+"}";
+        }
+    }
+
+    private final Map<Lane, LaneQueue> mLanes = new EnumMap<>(Lane.class);
+
+    TaskScheduler() {
+        for (Lane lane : Lane.values())
+            mLanes.put(lane, new LaneQueue(lane));
+    }
+
+    void submit(Lane lane, Runnable task) {
+        LaneQueue laneQueue = mLanes.get(lane);
+        synchronized (laneQueue) {
+            if (lane.replaceQueued) {
+                // the newer task reflects the current state (e.g. resume or
+                // new connection)
+                int dropped = laneQueue.queue.drainTo(new ArrayList<>());
+                if (dropped > 0)
+                    LOGGER.config("replaced queued tasks, lane: "+lane);
+                laneQueue.replaced.addAndGet(dropped);
+            }
+            laneQueue.queue.offer(new Task(task));
+        }
+    }
+
+    /** Drop queued tasks that are useless without connection. */
+    void onDisconnected() {
+        for (LaneQueue laneQueue : mLanes.values()) {
+            if (!laneQueue.lane.cancelOnDisconnect)
+                continue;
+            int dropped = laneQueue.queue.drainTo(new ArrayList<>());
+            laneQueue.cancelled.addAndGet(dropped);
+        }
+        LOGGER.config("metrics: "+this.metrics());
+    }
+
+    String metrics() {
+        return mLanes.values().stream()
+                .map(LaneQueue::toString)
+                .collect(Collectors.joining(" "));
+    }
+}
@@ -19,8 +19,14 @@
 package org.kontalk.crypto;
 
 import java.io.File;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import org.kontalk.crypto.PGPUtils.PGPCoderKey;
@@ -84,7 +90,8 @@ public final class Coder {
         //INVALID_TIMESTAMP,
     }
 
-    private static final HashMap<Contact, PGPCoderKey> KEY_MAP = new HashMap<>();
+    // accessed by parallel decryption
+    private static final Map<Contact, PGPCoderKey> KEY_MAP = new ConcurrentHashMap<>();
 
     public static Optional<PGPCoderKey> contactkey(Contact contact) {
         if (KEY_MAP.containsKey(contact)) {
@@ -106,6 +113,44 @@ public final class Coder {
         return Optional.empty();
     }
 
+    private static final int MAX_KEY_LISTS = 32;
+
+    // recipient keys of last used member lists, validated by fingerprints
+    private static final Map<List<Contact>, List<PGPCoderKey>> KEY_LIST_MAP =
+            Collections.synchronizedMap(new LinkedHashMap<List<Contact>, List<PGPCoderKey>>(
+                    MAX_KEY_LISTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Contact>, List<PGPCoderKey>> e) {
+                    return this.size() > MAX_KEY_LISTS;
+                }
+            });
+
+    /**
+     * Get public keys for all contacts, empty if any key is missing.
+     * Results for the same contact list are cached.
+     */
+    static Optional<List<PGPCoderKey>> contactKeys(List<Contact> contacts) {
+        List<PGPCoderKey> cached = KEY_LIST_MAP.get(contacts);
+        if (cached != null && cached.size() == contacts.size()) {
+            boolean valid = true;
+            for (int i = 0; i < contacts.size() && valid; i++)
+                valid = cached.get(i).fingerprint.equals(contacts.get(i).getFingerprint());
+            if (valid)
+                return Optional.of(cached);
+        }
+
+        List<PGPCoderKey> keys = new ArrayList<>(contacts.size());
+        for (Contact contact : contacts) {
+            PGPCoderKey key = contactkey(contact).orElse(null);
+            if (key == null)
+                return Optional.empty();
+            keys.add(key);
+        }
+        keys = Collections.unmodifiableList(keys);
+        KEY_LIST_MAP.put(new ArrayList<>(contacts), keys);
+        return Optional.of(keys);
+    }
+
     /**
      * Decrypt and verify the body of a message. Sets the encryption and signing
      * status of the message and errors that may occur are saved to the message.
@@ -114,6 +159,16 @@ public final class Coder {
         return Decryptor.decryptMessage(message, myKey);
     }
 
+    /**
+     * Verify the signature of an already decrypted message again, e.g. after
+     * the public key of the sender became available. Signing status and
+     * errors are saved to the message.
+     * @return true if the signature is now verified
+     */
+    public static boolean verifyMessage(PersonalKey myKey, DecryptMessage message) {
+        return Decryptor.verifyMessage(message, myKey);
+    }
+
     /**
      * Decrypt and verify a downloaded attachment file. Sets the encryption and
      * signing status of the message attachment and errors that may occur are
@@ -141,7 +196,32 @@ public final class Coder {
         return new Encryptor(myKey, message).encryptString(plainText);
     }
 
-    public static Optional<File> encryptAttachment(PersonalKey myKey, OutMessage message, File file) {
-        return new Encryptor(myKey, message).encryptAttachment(file);
+    /**
+     * Encrypt attachment file to a new temporary file.
+     * @param bufferSize size hint for the stream buffers
+     */
+    public static Optional<File> encryptAttachment(PersonalKey myKey, OutMessage message,
+            File file, int bufferSize) {
+        return new Encryptor(myKey, message).encryptAttachment(file, bufferSize);
+    }
+
+    /**
+     * Upper bound for the size of an encrypted attachment, for when the exact
+     * size must be known before encryption.
+     * @param receivers number of receivers the attachment is encrypted for
+     * @param bufferSize size hint for the stream buffers
+     */
+    public static long maxEncryptedSize(long plainSize, int receivers, int bufferSize) {
+        return Encryptor.maxEncryptedSize(plainSize, receivers, bufferSize);
+    }
+
+    /**
+     * Encrypt attachment file and write the result to an output stream.
+     * @param bufferSize size hint for the stream buffers
+     * @return true if encryption was successful
+     */
+    public static boolean encryptAttachment(PersonalKey myKey, OutMessage message,
+            File file, OutputStream out, int bufferSize) {
+        return new Encryptor(myKey, message).encryptAttachment(file, out, bufferSize);
     }
 }
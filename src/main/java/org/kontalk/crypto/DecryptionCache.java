@@ -0,0 +1,135 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Bounded cache for results of message decryption and signature verification.
+ *
+ * Redelivered or duplicate messages and decrypting again lead to the same
+ * encrypted data being decrypted and verified multiple times. The results
+ * are keyed by digest of encrypted data, sender key and own key, so the
+ * (expensive) public key operations can be skipped.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class DecryptionCache {
+    private static final Logger LOGGER = Logger.getLogger(DecryptionCache.class.getName());
+
+    private static final int MAX_ENTRIES = 256;
+    /** Larger decrypted content is not cached (chars). */
+    private static final int MAX_CONTENT_LENGTH = 1 << 16;
+    /** Log metrics once after this many lookups. */
+    private static final int LOG_INTERVAL = 100;
+
+    private static final class Entry {
+        final Coder.Signing signing;
+        final EnumSet<Coder.Error> errors;
+        final String plainText;
+        /** Time needed for original decryption. */
+        final long nanos;
+
+        Entry(Decryptor.DecryptionResult result, long nanos) {
+            this.signing = result.signing;
+            this.errors = EnumSet.copyOf(result.errors);
+            this.plainText = result.plainText;
+            this.nanos = nanos;
+        }
+    }
+
+    private final Map<String, Entry> mEntries =
+            Collections.synchronizedMap(new LinkedHashMap<String, Entry>(
+                    MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> e) {
+                    return this.size() > MAX_ENTRIES;
+                }
+            });
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mSavedNanos = new AtomicLong();
+
+    /**
+     * Cache key for encrypted data decrypted with own key and verified with
+     * sender key (fingerprint may be empty if sender key is not available).
+     */
+    static String key(String encryptedData, long myKeyID, String senderFingerprint) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            LOGGER.log(Level.WARNING, "no digest algorithm", ex);
+            return "";
+        }
+        byte[] hash = digest.digest(encryptedData.getBytes(StandardCharsets.US_ASCII));
+        return Hex.toHexString(hash) + "/" + Long.toHexString(myKeyID) + "/" + senderFingerprint;
+    }
+
+    /** Get a copy of the cached result. */
+    Optional<Decryptor.DecryptionResult> get(String key) {
+        Entry entry = key.isEmpty() ? null : mEntries.get(key);
+        long lookups;
+        if (entry == null) {
+            lookups = mMisses.incrementAndGet() + mHits.get();
+        } else {
+            lookups = mHits.incrementAndGet() + mMisses.get();
+            mSavedNanos.addAndGet(entry.nanos);
+        }
+        if (lookups % LOG_INTERVAL == 0)
+            LOGGER.config(this.metrics());
+
+        if (entry == null)
+            return Optional.empty();
+
+        Decryptor.DecryptionResult result = new Decryptor.DecryptionResult();
+        result.signing = entry.signing;
+        result.errors.addAll(entry.errors);
+        result.plainText = entry.plainText;
+        return Optional.of(result);
+    }
+
+    /** Aggregated hit/miss counts and decryption time saved so far. */
+    String metrics() {
+        return "hits="+mHits.get()+", misses="+mMisses.get()
+                +", entries="+mEntries.size()
+                +", saved ms="+TimeUnit.NANOSECONDS.toMillis(mSavedNanos.get());
+    }
+
+    void put(String key, Decryptor.DecryptionResult result, long nanos) {
+        if (key.isEmpty() || result.plainText.length() > MAX_CONTENT_LENGTH)
+            return;
+
+        mEntries.put(key, new Entry(result, nanos));
+    }
+}
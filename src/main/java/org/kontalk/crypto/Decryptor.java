@@ -18,7 +18,6 @@
 
 package org.kontalk.crypto;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -26,6 +25,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.nio.file.Path;
 import java.text.ParseException;
 import java.util.Arrays;
@@ -36,7 +36,6 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FilenameUtils;
-import org.apache.http.util.EncodingUtils;
 import org.bouncycastle.openpgp.PGPCompressedData;
 import org.bouncycastle.openpgp.PGPEncryptedDataList;
 import org.bouncycastle.openpgp.PGPException;
@@ -61,6 +60,7 @@ import org.kontalk.model.message.MessageContent.InAttachment;
 import org.kontalk.system.AttachmentManager;
 import org.kontalk.util.CPIMMessage;
 import org.kontalk.util.ClientUtils;
+import org.kontalk.util.EncodingUtils;
 import org.kontalk.util.MediaUtils;
 import org.kontalk.util.XMPPParserUtils;
 
@@ -72,9 +72,15 @@ import org.kontalk.util.XMPPParserUtils;
 final class Decryptor {
     private static final Logger LOGGER = Logger.getLogger(Decryptor.class.getName());
 
-    private static class DecryptionResult {
+    private static final int BUFFER_SIZE = 1 << 12;
+
+    private static final DecryptionCache CACHE = new DecryptionCache();
+
+    static class DecryptionResult {
         final EnumSet<Coder.Error> errors = EnumSet.noneOf(Coder.Error.class);
         Coder.Signing signing = Coder.Signing.UNKNOWN;
+        /** Decrypted (CPIM) string, only for message content. */
+        String plainText = "";
     }
 
     // note: signing requires also encryption
@@ -89,20 +95,13 @@ final class Decryptor {
         if (encryptedContent.isEmpty()) {
             LOGGER.warning("no encrypted data in encrypted message");
         }
-        byte[] encryptedData = org.kontalk.util.EncodingUtils.base64ToBytes(encryptedContent);
 
         // if sender signing key not found -> can decrypt but not verify
         PGPUtils.PGPCoderKey senderKey = Coder.contactkey(message.getContact()).orElse(null);
-        InputStream encryptedIn = new ByteArrayInputStream(encryptedData);
-        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
         DecryptionResult decResult;
         try {
-            decResult = decryptAndVerify(encryptedIn,
-                    plainOut,
-                    myKey.getPrivateEncryptionKey(),
-                    senderKey != null ?
-                            Optional.of(senderKey.signKey) :
-                            Optional.empty());
+            decResult = decryptAndVerify(encryptedContent, myKey,
+                    Optional.ofNullable(senderKey));
         } catch (IOException | PGPException ex) {
             LOGGER.log(Level.WARNING, "can't decrypt message", ex);
             return false;
@@ -115,9 +114,7 @@ final class Decryptor {
         String senderUID = senderKey != null ?
                 senderKey.userID :
                 null;
-        String decryptedContent = EncodingUtils.getString(
-                plainOut.toByteArray(),
-                CPIMMessage.CHARSET);
+        String decryptedContent = decResult.plainText;
 
         MessageContent content;
         // NOTE: we are not restricting the expected decrypted content to match the outer protocol
@@ -144,6 +141,47 @@ final class Decryptor {
         }
     }
 
+    /**
+     * Verify the signature of an already decrypted message. The encrypted data
+     * must still be present in the message.
+     */
+    static boolean verifyMessage(DecryptMessage message, PersonalKey myKey) {
+        String encryptedContent = message.getEncryptedContent();
+        if (message.isEncrypted() || encryptedContent.isEmpty()) {
+            LOGGER.warning("no encrypted data to verify");
+            return false;
+        }
+
+        PGPUtils.PGPCoderKey senderKey = Coder.contactkey(message.getContact()).orElse(null);
+        if (senderKey == null) {
+            LOGGER.info("can't verify, sender key not found");
+            return false;
+        }
+
+        DecryptionResult decResult;
+        try {
+            decResult = decryptAndVerify(encryptedContent, myKey, Optional.of(senderKey));
+        } catch (IOException | PGPException ex) {
+            LOGGER.log(Level.WARNING, "can't decrypt message", ex);
+            return false;
+        }
+        EnumSet<Coder.Error> allErrors = decResult.errors;
+
+        // only check sender and recipient again, content was already set
+        String decryptedContent = decResult.plainText;
+        if (!decryptedContent.startsWith("<" + SignCryptElement.ELEMENT_NAME)) {
+            parseCPIMOrNull(decryptedContent, myKey.getUserId(), Optional.of(senderKey.userID),
+                    allErrors);
+        }
+
+        message.setSecurityErrors(allErrors);
+        message.setSigning(decResult.signing);
+
+        boolean verified = decResult.signing == Coder.Signing.VERIFIED;
+        LOGGER.info("message verification "+(verified ? "successful" : "failed"));
+        return verified;
+    }
+
     static void decryptAttachment(InAttachment attachment, PersonalKey mMyKey, Contact sender) {
         Path inPath = attachment.getFilePath();
         String outName = inPath.getFileName().toString();
@@ -192,8 +230,37 @@ final class Decryptor {
         }
     }
 
+    /**
+     * Decrypt and verify Base64 encoded message data. Results for equal data
+     * and keys are cached.
+     */
+    private static DecryptionResult decryptAndVerify(String encryptedContent,
+            PersonalKey myKey, Optional<PGPUtils.PGPCoderKey> senderKey)
+            throws PGPException, IOException {
+        PGPPrivateKey privateKey = myKey.getPrivateEncryptionKey();
+        String cacheKey = DecryptionCache.key(encryptedContent, privateKey.getKeyID(),
+                senderKey.map(k -> k.fingerprint).orElse(""));
+        DecryptionResult cached = CACHE.get(cacheKey).orElse(null);
+        if (cached != null)
+            return cached;
+
+        long start = System.nanoTime();
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream(
+                plainSizeHint(encryptedContent));
+        // decode while decrypting, no intermediate byte array
+        DecryptionResult result = decryptAndVerify(
+                EncodingUtils.base64ToStream(encryptedContent),
+                plainOut,
+                privateKey,
+                senderKey.map(k -> k.signKey));
+        result.plainText = toCPIMString(plainOut);
+
+        CACHE.put(cacheKey, result, System.nanoTime() - start);
+        return result;
+    }
+
     /** Decrypt, verify and write input stream data to output stream. */
-    private static DecryptionResult decryptAndVerify(
+    static DecryptionResult decryptAndVerify(
             InputStream encryptedInput, OutputStream plainOutput,
             PGPPrivateKey myKey, Optional<PGPPublicKey> senderSigningKey)
             throws PGPException, IOException {
@@ -282,11 +349,12 @@ final class Decryptor {
 
         PGPLiteralData ld = (PGPLiteralData) object;
         InputStream unc = ld.getInputStream();
-        int ch;
-        while ((ch = unc.read()) >= 0) {
-            plainOutput.write(ch);
+        byte[] buf = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = unc.read(buf)) >= 0) {
+            plainOutput.write(buf, 0, len);
             if (ops != null)
-                ops.update((byte) ch);
+                ops.update(buf, 0, len);
         }
 
         if (ops != null) {
@@ -307,6 +375,22 @@ final class Decryptor {
         return result;
     }
 
+    /** Approximate size of decrypted data for Base64 encoded encrypted data. */
+    static int plainSizeHint(String base64) {
+        // compression ignored
+        return Math.max(base64.length() / 4 * 3, 32);
+    }
+
+    /** Decode the decrypted CPIM data directly from the output buffer. */
+    static String toCPIMString(ByteArrayOutputStream plainOut) {
+        try {
+            return plainOut.toString(CPIMMessage.CHARSET);
+        } catch (UnsupportedEncodingException ex) {
+            LOGGER.log(Level.WARNING, "CPIM's charset not supported", ex);
+            return plainOut.toString();
+        }
+    }
+
     private static DecryptionResult verifySignature(DecryptionResult result,
             PGPObjectFactory pgpFact, PGPOnePassSignature ops) throws PGPException, IOException {
         Object object = pgpFact.nextObject(); // nullable
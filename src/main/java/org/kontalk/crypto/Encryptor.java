@@ -28,10 +28,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.SecureRandom;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.List;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -65,7 +65,11 @@ final class Encryptor {
     private static final Logger LOGGER = Logger.getLogger(Encryptor.class.getName());
 
     // should always be a power of 2
-    private static final int BUFFER_SIZE = 1 << 8;
+    static final int MIN_BUFFER_SIZE = 1 << 8;
+    static final int MAX_BUFFER_SIZE = 1 << 20;
+
+    static final String MIME_TEXT = "text/plain";
+    static final String MIME_XMPP = "application/xmpp+xml";
 
     private final PersonalKey myKey;
     private final OutMessage message;
@@ -76,7 +80,7 @@ final class Encryptor {
     }
 
     String encryptMessageRFC3923() {
-        return encryptData(message.getContent().getPlainText(), "text/plain");
+        return encryptData(message.getContent().getPlainText(), MIME_TEXT);
     }
 
     String encryptString(String plainText) {
@@ -90,8 +94,7 @@ final class Encryptor {
     }
 
     String encryptStanzaRFC3923(String xml) {
-        String data = "<xmpp xmlns='jabber:client'>" + xml + "</xmpp>";
-        return encryptData(data, "application/xmpp+xml");
+        return encryptData(wrapStanza(xml), MIME_XMPP);
     }
 
     private String encryptData(String data, String mime) {
@@ -99,21 +102,7 @@ final class Encryptor {
         if (receiverKeys == null)
             return "";
 
-        // secure the message against replay attacks using Message/CPIM
-        String from = myKey.getUserId();
-        String[] tos = receiverKeys.stream()
-                .map(key -> key.userID)
-                .toArray(String[]::new);
-        CPIMMessage cpim = new CPIMMessage(from, tos, new Date(), mime, data);
-        byte[] plainText;
-        try {
-            plainText = cpim.toByteArray();
-        } catch (UnsupportedEncodingException ex) {
-            LOGGER.log(Level.WARNING, "CPIM's charset not supported", ex);
-            plainText = cpim.toString().getBytes();
-        }
-
-        return encrypt(plainText, receiverKeys);
+        return encrypt(toCPIM(myKey, receiverKeys, mime, data), receiverKeys);
     }
 
     private String encrypt(byte[] plainText, List<PGPUtils.PGPCoderKey> receiverKeys) {
@@ -122,20 +111,16 @@ final class Encryptor {
             return "";
         }
 
-        ByteArrayInputStream in = new ByteArrayInputStream(plainText);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            encryptAndSign(in, out, myKey, receiverKeys);
+            return encryptToBase64(plainText, myKey, receiverKeys);
         } catch(IOException | PGPException ex) {
             LOGGER.log(Level.WARNING, "can't encrypt data", ex);
             message.setSecurityErrors(EnumSet.of(Coder.Error.UNKNOWN_ERROR));
             return "";
         }
-
-        return EncodingUtils.bytesToBase64(out.toByteArray());
     }
 
-    Optional<File> encryptAttachment(File file) {
+    Optional<File> encryptAttachment(File file, int bufferSize) {
         List<PGPUtils.PGPCoderKey> receiverKeys = this.loadKeysOrNull();
         if (receiverKeys == null)
             return Optional.empty();
@@ -150,7 +135,7 @@ final class Encryptor {
 
         try (FileInputStream in = new FileInputStream(file);
                 FileOutputStream out = new FileOutputStream(tempFile)) {
-            encryptAndSign(in, out, myKey, receiverKeys);
+            encryptAndSign(in, out, myKey, receiverKeys, bufferSize(bufferSize));
         } catch (IOException | PGPException ex) {
             LOGGER.log(Level.WARNING, "can't encrypt attachment", ex);
             return Optional.empty();
@@ -160,27 +145,110 @@ final class Encryptor {
         return Optional.of(tempFile);
     }
 
+    /**
+     * Encrypt attachment file directly into the output stream. No temporary
+     * file is created. The output stream is not closed.
+     */
+    boolean encryptAttachment(File file, OutputStream out, int bufferSize) {
+        List<PGPUtils.PGPCoderKey> receiverKeys = this.loadKeysOrNull();
+        if (receiverKeys == null)
+            return false;
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            encryptAndSign(in, out, myKey, receiverKeys, bufferSize(bufferSize));
+        } catch (IOException | PGPException ex) {
+            LOGGER.log(Level.WARNING, "can't encrypt attachment", ex);
+            return false;
+        }
+
+        LOGGER.info("attachment stream encryption successful");
+        return true;
+    }
+
     private List<PGPUtils.PGPCoderKey> loadKeysOrNull() {
+        // sorted for a stable cache key, transmissions are a set
         List<Contact> contacts = message.getTransmissions().stream()
                 .map(Transmission::getContact)
+                .sorted(Comparator.comparingInt(Contact::getID))
                 .collect(Collectors.toList());
-        List<PGPUtils.PGPCoderKey> receiverKeys = contacts.stream()
-                .map(c -> Coder.contactkey(c).orElse(null))
-                .collect(Collectors.toList());
-        if (receiverKeys.stream().anyMatch(Objects::isNull)) {
+        // one key list for all receivers: the message is encrypted only once,
+        // the session key once for each receiver key
+        List<PGPUtils.PGPCoderKey> receiverKeys = Coder.contactKeys(contacts).orElse(null);
+        if (receiverKeys == null) {
             message.setSecurityErrors(EnumSet.of(Coder.Error.KEY_UNAVAILABLE));
             return null;
         }
         return receiverKeys;
     }
 
+    /** Power of 2 buffer size for the given size hint, within bounds. */
+    static int bufferSize(int hint) {
+        int size = Integer.highestOneBit(Math.max(hint, 1));
+        if (size < hint)
+            size <<= 1;
+        return Math.min(Math.max(size, MIN_BUFFER_SIZE), MAX_BUFFER_SIZE);
+    }
+
+    /**
+     * Upper bound for the size of encrypted and signed attachment data.
+     * Covers the packet headers of the three nested layers (encrypted,
+     * compressed, literal), the worst case expansion of deflate for
+     * incompressible data, one session key packet for each receiver and the
+     * signature.
+     */
+    static long maxEncryptedSize(long plainSize, int receivers, int bufferSize) {
+        long chunks = plainSize / bufferSize(bufferSize) + 1;
+        // one partial length byte per chunk and a final header, for each layer
+        long headers = 3 * (chunks + 8);
+        // see zlib's deflateBound()
+        long deflate = (plainSize >> 12) + (plainSize >> 14) + (plainSize >> 25) + 13;
+        // enough for RSA keys up to 8192 bit
+        long sessionKeys = Math.max(receivers, 1) * 1100L;
+        // signature (incl. user ID), one-pass signature, literal data header,
+        // IV and modification detection code
+        long fixed = 4096;
+        return plainSize + headers + deflate + sessionKeys + fixed;
+    }
+
+    static String wrapStanza(String xml) {
+        return "<xmpp xmlns='jabber:client'>" + xml + "</xmpp>";
+    }
+
+    /** Secure the data against replay attacks using Message/CPIM. */
+    static byte[] toCPIM(PersonalKey myKey, List<PGPUtils.PGPCoderKey> receiverKeys,
+            String mime, String data) {
+        String from = myKey.getUserId();
+        String[] tos = receiverKeys.stream()
+                .map(key -> key.userID)
+                .toArray(String[]::new);
+        CPIMMessage cpim = new CPIMMessage(from, tos, new Date(), mime, data);
+        try {
+            return cpim.toByteArray();
+        } catch (UnsupportedEncodingException ex) {
+            LOGGER.log(Level.WARNING, "CPIM's charset not supported", ex);
+            return cpim.toString().getBytes();
+        }
+    }
+
+    /** Encrypt and sign data in memory, result is Base64 encoded. */
+    static String encryptToBase64(byte[] plainText,
+            PersonalKey myKey, List<PGPUtils.PGPCoderKey> receiverKeys)
+            throws IOException, PGPException {
+        ByteArrayInputStream in = new ByteArrayInputStream(plainText);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(plainText.length + 1024);
+        // no need for large buffers on short messages
+        encryptAndSign(in, out, myKey, receiverKeys, bufferSize(plainText.length));
+        return EncodingUtils.bytesToBase64(out.toByteArray());
+    }
+
     /**
      * Encrypt, sign and write input stream data to output stream.
-     * Input and output stream are closed.
+     * Input and output stream are not closed.
      */
-    private static void encryptAndSign(
+    static void encryptAndSign(
             InputStream plainInput, OutputStream encryptedOutput,
-            PersonalKey myKey, List<PGPUtils.PGPCoderKey> receiverKeys)
+            PersonalKey myKey, List<PGPUtils.PGPCoderKey> receiverKeys,
+            int bufferSize)
             throws IOException, PGPException {
 
         // setup data encryptor & generator
@@ -193,11 +261,11 @@ final class Encryptor {
         receiverKeys.forEach(key ->
             encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(key.encryptKey)));
 
-        OutputStream encryptedOut = encGen.open(encryptedOutput, new byte[BUFFER_SIZE]);
+        OutputStream encryptedOut = encGen.open(encryptedOutput, new byte[bufferSize]);
 
         // setup compressed data generator
         PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+        OutputStream compressedOut = compGen.open(encryptedOut, new byte[bufferSize]);
 
         // setup signature generator
         int algo = myKey.getSigningAlgorithm();
@@ -218,12 +286,10 @@ final class Encryptor {
             PGPLiteralData.BINARY,
             "",
             new Date(),
-            new byte[BUFFER_SIZE]);
+            new byte[bufferSize]);
 
         // read the "in" stream, compress, encrypt and write to the "out" stream
-        // this must be done if clear data is bigger than the buffer size
-        // but there are other ways to optimize...
-        byte[] buf = new byte[BUFFER_SIZE];
+        byte[] buf = new byte[bufferSize];
         int len;
         while ((len = plainInput.read(buf)) > 0) {
             literalOut.write(buf, 0, len);
@@ -30,6 +30,7 @@ import java.security.Security;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.Optional;
 import java.util.logging.Level;
@@ -108,6 +109,18 @@ public final class PGPUtils {
             this.fingerprint = fingerprint;
             this.rawKey = rawKey;
         }
+
+        public long getEncryptKeyID() {
+            return encryptKey.getKeyID();
+        }
+
+        /** Expiration date of signing key, empty if key does not expire. */
+        public Optional<Date> getExpiry() {
+            long validSeconds = signKey.getValidSeconds();
+            return validSeconds > 0 ?
+                    Optional.of(new Date(signKey.getCreationTime().getTime() + validSeconds * 1000)) :
+                    Optional.empty();
+        }
     }
 
     public static void registerProvider() {
@@ -126,6 +126,21 @@ public class ViewEvent {
         }
     }
 
+    /** Progress of decrypting/verifying old messages of a contact. */
+    public static class DecryptionProgress extends ViewEvent {
+        public final Contact contact;
+        public final int done;
+        public final int total;
+        public final boolean finished;
+
+        public DecryptionProgress(Contact contact, int done, int total, boolean finished) {
+            this.contact = contact;
+            this.done = done;
+            this.total = total;
+            this.finished = finished;
+        }
+    }
+
     /** Notify view about connection retry in X seconds. */
     public static class RetryTimerMessage extends ViewEvent {
         public final int countdown;
@@ -31,6 +31,7 @@ import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.kontalk.crypto.PGPUtils;
 import org.kontalk.misc.JID;
 import org.kontalk.misc.Searchable;
 import org.kontalk.persistence.Database;
@@ -76,6 +77,10 @@ public final class Contact extends Observable implements Searchable {
     public static final String COL_PUB_KEY = "public_key";
     public static final String COL_KEY_FP = "key_fingerprint";
     public static final String COL_AVATAR_ID = "avatar_id";
+    public static final String COL_SIGN_KEY_ID = "sign_key_id";
+    public static final String COL_ENCR_KEY_ID = "encryption_key_id";
+    public static final String COL_KEY_UID = "key_uid";
+    public static final String COL_KEY_EXPIRY = "key_expiry";
     public static final String SCHEMA = "(" +
             Database.SQL_ID +
             COL_JID + " TEXT NOT NULL UNIQUE, " +
@@ -86,8 +91,16 @@ public final class Contact extends Observable implements Searchable {
             COL_ENCR + " INTEGER NOT NULL, " +
             COL_PUB_KEY + " TEXT, " +
             COL_KEY_FP + " TEXT," +
-            COL_AVATAR_ID + " TEXT" +
+            COL_AVATAR_ID + " TEXT, " +
+            // metadata of public key, to avoid parsing
+            COL_SIGN_KEY_ID + " INTEGER, " +
+            COL_ENCR_KEY_ID + " INTEGER, " +
+            COL_KEY_UID + " TEXT, " +
+            COL_KEY_EXPIRY + " INTEGER" +
             ")";
+    // index name and columns
+    public static final String[] INDEX_KEY_FP = {"user_key_fp_idx", COL_KEY_FP};
+    public static final String[] INDEX_SIGN_KEY_ID = {"user_sign_key_idx", COL_SIGN_KEY_ID};
 
     private final int mID;
     private JID mJID;
@@ -98,6 +111,10 @@ public final class Contact extends Observable implements Searchable {
     private boolean mEncrypted = true;
     private String mKey = "";
     private String mFingerprint = "";
+    private long mSignKeyID = 0;
+    private long mEncryptKeyID = 0;
+    private String mKeyUID = "";
+    private Date mKeyExpiry = null;
     private boolean mBlocked = false;
     private Subscription mSubStatus = Subscription.UNKNOWN; // not in database
     //private ItemType mType;
@@ -119,7 +136,11 @@ public final class Contact extends Observable implements Searchable {
                 mEncrypted,
                 null, // key
                 null, // fingerprint
-                null); // avatar id
+                null, // avatar id
+                null, // sign key id
+                null, // encryption key id
+                null, // key uid
+                null); // key expiry
         mID = Model.database().execInsert(TABLE, values);
         if (mID < 1)
             LOGGER.log(Level.WARNING, "could not insert contact");
@@ -135,7 +156,11 @@ public final class Contact extends Observable implements Searchable {
             boolean encrypted,
             String publicKey,
             String fingerprint,
-            String avatarID) {
+            String avatarID,
+            long signKeyID,
+            long encryptKeyID,
+            String keyUID,
+            Optional<Date> keyExpiry) {
         mID = id;
         mJID = jid;
         mName = name;
@@ -144,6 +169,10 @@ public final class Contact extends Observable implements Searchable {
         mEncrypted = encrypted;
         mKey = publicKey;
         mFingerprint = fingerprint.toLowerCase();
+        mSignKeyID = signKeyID;
+        mEncryptKeyID = encryptKeyID;
+        mKeyUID = keyUID;
+        mKeyExpiry = keyExpiry.orElse(null);
         mAvatar = avatarID.isEmpty() ?
                 null :
                 Avatar.DefaultAvatar.load(avatarID).orElse(null);
@@ -259,16 +288,49 @@ public final class Contact extends Observable implements Searchable {
         return mFingerprint;
     }
 
-    public void setKey(byte[] rawKey, String fingerprint) {
+    /** Key ID of the public signing key, 0 if no key is set. */
+    public long getSignKeyID() {
+        return mSignKeyID;
+    }
+
+    /** Key ID of the public encryption key, 0 if no key is set. */
+    public long getEncryptKeyID() {
+        return mEncryptKeyID;
+    }
+
+    /** User ID in public key, empty if no key is set. */
+    public String getKeyUID() {
+        return mKeyUID;
+    }
+
+    public Optional<Date> getKeyExpiry() {
+        return Optional.ofNullable(mKeyExpiry);
+    }
+
+    /** Key is set, but metadata is missing (database before version 7). */
+    boolean needsKeyMetadata() {
+        return !mKey.isEmpty() && mSignKeyID == 0;
+    }
+
+    void setKey(PGPUtils.PGPCoderKey key) {
         if (!mKey.isEmpty())
             LOGGER.info("overwriting public key of contact: "+this);
 
-        mKey = EncodingUtils.bytesToBase64(rawKey);
-        mFingerprint = fingerprint.toLowerCase();
-        this.save();
+        mKey = EncodingUtils.bytesToBase64(key.rawKey);
+        this.setKeyMetadata(key);
         this.changed(ViewChange.KEY);
     }
 
+    /** Update and save metadata of the set key, no view notification. */
+    void setKeyMetadata(PGPUtils.PGPCoderKey key) {
+        mFingerprint = key.fingerprint.toLowerCase();
+        mSignKeyID = key.signKey.getKeyID();
+        mEncryptKeyID = key.getEncryptKeyID();
+        mKeyUID = key.userID;
+        mKeyExpiry = key.getExpiry().orElse(null);
+        this.save();
+    }
+
     public boolean isBlocked() {
         return mBlocked;
     }
@@ -366,6 +428,10 @@ public final class Contact extends Observable implements Searchable {
         mEncrypted = false;
         mKey = "";
         mFingerprint = "";
+        mSignKeyID = 0;
+        mEncryptKeyID = 0;
+        mKeyUID = "";
+        mKeyExpiry = null;
         if (mAvatar != null)
             mAvatar.delete();
         mAvatar = null;
@@ -393,6 +459,10 @@ public final class Contact extends Observable implements Searchable {
         set.put(COL_PUB_KEY, Database.setString(mKey));
         set.put(COL_KEY_FP, Database.setString(mFingerprint));
         set.put(COL_AVATAR_ID, Database.setString(mAvatar != null ? mAvatar.getID() : ""));
+        set.put(COL_SIGN_KEY_ID, mSignKeyID != 0 ? mSignKeyID : null);
+        set.put(COL_ENCR_KEY_ID, mEncryptKeyID != 0 ? mEncryptKeyID : null);
+        set.put(COL_KEY_UID, Database.setString(mKeyUID));
+        set.put(COL_KEY_EXPIRY, mKeyExpiry);
         Model.database().execUpdate(TABLE, set, mID);
 
         mSaveOnShutdown = false;
@@ -443,8 +513,14 @@ public final class Contact extends Observable implements Searchable {
         String key = Database.getString(rs, Contact.COL_PUB_KEY);
         String fp = Database.getString(rs, Contact.COL_KEY_FP);
         String avatarID = Database.getString(rs, Contact.COL_AVATAR_ID);
+        long signKeyID = rs.getLong(Contact.COL_SIGN_KEY_ID);
+        long encryptKeyID = rs.getLong(Contact.COL_ENCR_KEY_ID);
+        String keyUID = Database.getString(rs, Contact.COL_KEY_UID);
+        long e = rs.getLong(Contact.COL_KEY_EXPIRY);
+        Date keyExpiry = e == 0 ? null : new Date(e);
 
         return new Contact(id, jid, name, status,
-                Optional.ofNullable(lastSeen), encr, key, fp, avatarID);
+                Optional.ofNullable(lastSeen), encr, key, fp, avatarID,
+                signKeyID, encryptKeyID, keyUID, Optional.ofNullable(keyExpiry));
     }
 }
@@ -19,8 +19,10 @@ package org.kontalk.model;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Optional;
@@ -29,6 +31,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import org.kontalk.crypto.PGPUtils;
 import org.kontalk.misc.JID;
 import org.kontalk.persistence.Database;
 
@@ -46,6 +49,11 @@ public final class ContactList extends Observable {
 
     private final Map<JID, Contact> mJIDMap =
             Collections.synchronizedMap(new HashMap<JID, Contact>());
+    // public key lookup
+    private final Map<String, Contact> mFingerprintMap =
+            Collections.synchronizedMap(new HashMap<String, Contact>());
+    private final Map<Long, Contact> mSignKeyMap =
+            Collections.synchronizedMap(new HashMap<Long, Contact>());
 
     ContactList() {}
 
@@ -53,6 +61,7 @@ public final class ContactList extends Observable {
         assert mJIDMap.isEmpty();
 
         Map<Integer, Contact> contactMap = new HashMap<>();
+        List<Contact> noKeyMetadata = new ArrayList<>();
 
         Database db = Model.database();
         try (ResultSet resultSet = db.execSelectAll(Contact.TABLE)) {
@@ -67,11 +76,30 @@ public final class ContactList extends Observable {
                 if (!contact.isDeleted())
                     mJIDMap.put(jid, contact);
 
+                if (contact.needsKeyMetadata())
+                    noKeyMetadata.add(contact);
+
                 contactMap.put(contact.getID(), contact);
             }
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't load contacts from db", ex);
         }
+
+        // parse keys only once, after database update
+        if (!noKeyMetadata.isEmpty())
+            LOGGER.info("saving key metadata for contacts: "+noKeyMetadata.size());
+        // all metadata changes in one commit
+        db.beginTransaction();
+        try {
+            for (Contact contact : noKeyMetadata) {
+                PGPUtils.readPublicKey(contact.getKey()).ifPresent(contact::setKeyMetadata);
+            }
+        } finally {
+            db.endTransaction();
+        }
+
+        mJIDMap.values().forEach(this::addKeyIndex);
+
         this.changed(null);
 
         return contactMap;
@@ -113,6 +141,23 @@ public final class ContactList extends Observable {
         return this.get(myJID);
     }
 
+    /** Get the contact with the public key fingerprint. */
+    public Optional<Contact> getByFingerprint(String fingerprint) {
+        return Optional.ofNullable(mFingerprintMap.get(fingerprint.toLowerCase()));
+    }
+
+    /** Get the contact with the public signing key ID. */
+    public Optional<Contact> getBySignKeyID(long keyID) {
+        return Optional.ofNullable(mSignKeyMap.get(keyID));
+    }
+
+    /** Set new public key for contact. */
+    public void setKey(Contact contact, PGPUtils.PGPCoderKey key) {
+        this.removeKeyIndex(contact);
+        contact.setKey(key);
+        this.addKeyIndex(contact);
+    }
+
     public Set<Contact> getAll(boolean withMe, boolean blocked) {
         synchronized(mJIDMap) {
             return Collections.unmodifiableSet(
@@ -130,6 +175,7 @@ public final class ContactList extends Observable {
             LOGGER.warning("can't find contact "+contact);
         }
 
+        this.removeKeyIndex(contact);
         contact.setDeleted();
 
         this.changed(ViewChange.MODIFIED);
@@ -158,6 +204,20 @@ public final class ContactList extends Observable {
         return true;
     }
 
+    private void addKeyIndex(Contact contact) {
+        if (!contact.hasKey())
+            return;
+
+        mFingerprintMap.put(contact.getFingerprint(), contact);
+        if (contact.getSignKeyID() != 0)
+            mSignKeyMap.put(contact.getSignKeyID(), contact);
+    }
+
+    private void removeKeyIndex(Contact contact) {
+        mFingerprintMap.remove(contact.getFingerprint(), contact);
+        mSignKeyMap.remove(contact.getSignKeyID(), contact);
+    }
+
     private boolean isValid(JID jid) {
         if (!jid.isValid()) {
             LOGGER.warning("invalid jid: " + jid);
@@ -99,16 +99,17 @@ public final class Model {
 
     public Optional<InMessage> createInMessage(ProtoMessage protoMessage,
             Chat chat, ClientUtils.MessageIDs ids, Optional<Date> serverDate) {
+        // check before creating, creating saves the message
+        if (chat.getMessages().containsInMessage(ids.jid, ids.xmppID)) {
+            LOGGER.info("message already in chat, dropping this one");
+            return Optional.empty();
+        }
+
         InMessage newMessage = new InMessage(protoMessage, chat, ids.jid,
         ids.xmppID, serverDate);
 
         if (newMessage.getID() <= 0)
             return Optional.empty();
-
-        if (chat.getMessages().contains(newMessage)) {
-            LOGGER.info("message already in chat, dropping this one");
-            return Optional.empty();
-        }
         boolean added = chat.addMessage(newMessage);
         if (!added) {
             LOGGER.warning("can't add message to chat");
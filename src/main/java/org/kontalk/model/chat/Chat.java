@@ -80,6 +80,9 @@ public abstract class Chat extends Observable implements Observer, Searchable {
     private final ChatMessages mMessages;
 
     private boolean mRead;
+    // guarded by this
+    private boolean mDeferNewMessages = false;
+    private boolean mNewMessagesDeferred = false;
     private boolean mDeleted = false;
 
     private ViewSettings mViewSettings;
@@ -128,11 +131,34 @@ public abstract class Chat extends Observable implements Observer, Searchable {
                 this.save();
                 this.changed(ViewChange.READ);
             }
-            this.changed(ViewChange.NEW_MESSAGE);
+            // own messages are always shown immediately
+            if (!message.isInMessage() || !this.deferNewMessage())
+                this.changed(ViewChange.NEW_MESSAGE);
         }
         return added;
     }
 
+    /**
+     * Defer notifying about new messages, e.g. while many messages are
+     * received at once. One notification is send when turned off again.
+     */
+    void setDeferNewMessages(boolean defer) {
+        boolean notify;
+        synchronized (this) {
+            mDeferNewMessages = defer;
+            notify = !defer && mNewMessagesDeferred;
+            mNewMessagesDeferred = false;
+        }
+        if (notify)
+            this.changed(ViewChange.NEW_MESSAGE);
+    }
+
+    private synchronized boolean deferNewMessage() {
+        if (mDeferNewMessages)
+            mNewMessagesDeferred = true;
+        return mDeferNewMessages;
+    }
+
     public int getID() {
         return mID;
     }
@@ -21,6 +21,7 @@ package org.kontalk.model.chat;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -49,6 +50,7 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
     private final Set<Chat> mChats = Collections.synchronizedSet(new HashSet<Chat>());
 
     private boolean mUnread = false;
+    private volatile boolean mDeferNewMessages = false;
 
     public void load(Map<Integer, Contact> contactMap) {
         assert mChats.isEmpty();
@@ -73,6 +75,17 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
         return Collections.unmodifiableSet(mChats);
     }
 
+    /** Date of the newest incoming message in all chats, server date if known. */
+    public Optional<Date> getLastInMessageDate() {
+        synchronized(mChats) {
+            return mChats.stream()
+                    .map(c -> c.getMessages().getLastInMessage())
+                    .filter(Optional::isPresent)
+                    .map(o -> o.get().getServerDate().orElse(o.get().getDate()))
+                    .max(Date::compareTo);
+        }
+    }
+
     /** Get single chat with contact and XMPPID. */
     public Optional<SingleChat> get(Contact contact, String xmmpThreadID) {
         synchronized(mChats) {
@@ -101,17 +114,17 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
 
     /** Find single chat for contact and XMPP ID or creates a new chat. */
     public SingleChat getOrCreate(Contact contact, String xmppThreadID) {
-        SingleChat chat = this.get(contact, xmppThreadID).orElse(null);
-        if (chat != null)
-            return chat;
-
-        return this.createNew(contact, xmppThreadID);
-    }
+        SingleChat newChat;
+        // find and create in one step, concurrent callers must get the same chat
+        synchronized(mChats) {
+            SingleChat chat = this.get(contact, xmppThreadID).orElse(null);
+            if (chat != null)
+                return chat;
 
-    private SingleChat createNew(Contact contact, String xmppThreadID) {
-        SingleChat newChat = new SingleChat(contact, xmppThreadID);
-        LOGGER.config("new single chat: "+newChat);
-        this.putSilent(newChat);
+            newChat = new SingleChat(contact, xmppThreadID);
+            LOGGER.config("new single chat: "+newChat);
+            this.putSilent(newChat);
+        }
         this.changed(ViewChange.MODIFIED);
         return newChat;
     }
@@ -135,6 +148,19 @@ public final class ChatList extends Observable implements Observer, Iterable<Cha
             return;
         }
         chat.addObserver(this);
+        if (mDeferNewMessages)
+            chat.setDeferNewMessages(true);
+    }
+
+    /**
+     * Defer notifying about new messages in all chats (including new ones).
+     * When turned off, each chat with new messages notifies once.
+     */
+    public void setDeferNewMessages(boolean defer) {
+        mDeferNewMessages = defer;
+        synchronized(mChats) {
+            mChats.forEach(chat -> chat.setDeferNewMessages(defer));
+        }
     }
 
     public boolean contains(Contact contact) {
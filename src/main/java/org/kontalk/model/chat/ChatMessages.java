@@ -20,9 +20,11 @@ package org.kontalk.model.chat;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Optional;
@@ -33,7 +35,9 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import org.kontalk.misc.JID;
 import org.kontalk.model.Contact;
+import org.kontalk.model.message.InMessage;
 import org.kontalk.model.message.KonMessage;
 import org.kontalk.model.message.OutMessage;
 import org.kontalk.persistence.Database;
@@ -58,6 +62,10 @@ public final class ChatMessages {
     // ... and one set for .contains()
     private final Set<KonMessage> mContainsSet =
             Collections.synchronizedSet(new HashSet<>());
+    // sender JID and XMPP ID of incoming messages, to find duplicates before
+    // a new message is created
+    private final Set<List<Object>> mInMessageKeys =
+            Collections.synchronizedSet(new HashSet<>());
 
     ChatMessages() {
     }
@@ -91,6 +99,8 @@ public final class ChatMessages {
             return false;
         }
         mSortedSet.add(message);
+        if (message instanceof InMessage && !message.getXMPPID().isEmpty())
+            mInMessageKeys.add(inMessageKey(((InMessage) message).getJID(), message.getXMPPID()));
         return true;
     }
 
@@ -109,6 +119,15 @@ public final class ChatMessages {
         }
     }
 
+    /** Get all messages with a database ID in the given set. */
+    public Set<KonMessage> getByIDs(Set<Integer> ids) {
+        synchronized(mSortedSet) {
+            return mSortedSet.stream()
+                    .filter(m -> ids.contains(m.getID()))
+                    .collect(Collectors.toCollection(() -> new TreeSet<>(MESSAGE_COMPARATOR)));
+        }
+    }
+
     /** Get the newest (i.e. last received) outgoing message. */
     public Optional<OutMessage> getLast(String xmppID) {
         synchronized(mSortedSet) {
@@ -118,6 +137,15 @@ public final class ChatMessages {
         }
     }
 
+    /** Get the newest incoming message. */
+    public Optional<InMessage> getLastInMessage() {
+        synchronized(mSortedSet) {
+            return mSortedSet.descendingSet().stream()
+                    .filter(m -> m instanceof InMessage)
+                    .map(m -> (InMessage) m).findFirst();
+        }
+    }
+
     /** Get the last created message. */
     public Optional<KonMessage> getLast() {
         return mSortedSet.isEmpty() ?
@@ -129,6 +157,11 @@ public final class ChatMessages {
         return mContainsSet.contains(message);
     }
 
+    /** If an incoming message from this JID with this XMPP ID is in chat. */
+    public boolean containsInMessage(JID jid, String xmppID) {
+        return !xmppID.isEmpty() && mInMessageKeys.contains(inMessageKey(jid, xmppID));
+    }
+
     public int size() {
         return mSortedSet.size();
     }
@@ -141,4 +174,8 @@ public final class ChatMessages {
         SortedSet<KonMessage> headSet = mSortedSet.headSet(message);
         return headSet.isEmpty() ? Optional.empty() : Optional.of(headSet.last());
     }
+
+    private static List<Object> inMessageKey(JID jid, String xmppID) {
+        return Arrays.asList(jid, xmppID);
+    }
 }
@@ -18,23 +18,30 @@
 
 package org.kontalk.model.message;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.kontalk.crypto.Coder;
 import org.kontalk.misc.JID;
 import org.kontalk.model.Contact;
 import org.kontalk.model.chat.Chat;
+import org.kontalk.persistence.Database;
 
 /**
  * Model for an XMPP message sent to the user.
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
 public final class InMessage extends KonMessage implements DecryptMessage {
+    private static final Logger LOGGER = Logger.getLogger(InMessage.class.getName());
 
     private final Transmission mTransmission;
 
@@ -73,6 +80,9 @@ public final class InMessage extends KonMessage implements DecryptMessage {
     @Override
     public void setSigning(Coder.Signing signing) {
         mCoderStatus.setSigning(signing);
+        if (signing == Coder.Signing.VERIFIED && !this.isEncrypted())
+            // encrypted data kept for verification is not needed anymore
+            mContent.dropEncryptedContent();
         this.save();
     }
 
@@ -83,12 +93,24 @@ public final class InMessage extends KonMessage implements DecryptMessage {
 
     @Override
     public void setDecryptedContent(MessageContent decryptedContent) {
-        mContent.setDecryptedContent(decryptedContent);
+        // signature not verified: keep data to try again when key is available
+        mContent.setDecryptedContent(decryptedContent,
+                mCoderStatus.getSigning() == Coder.Signing.SIGNED);
         mCoderStatus.setDecrypted();
         this.save();
         this.changed(ViewChange.CONTENT);
     }
 
+    /**
+     * Return whether decryption or signature verification of this message
+     * could be tried (again).
+     */
+    public boolean canBeVerified() {
+        return this.isEncrypted() ||
+                (mCoderStatus.getSigning() == Coder.Signing.SIGNED &&
+                !mContent.getEncryptedContent().isEmpty());
+    }
+
     @Override
     public Set<Transmission> getTransmissions() {
         return new HashSet<>(Collections.singletonList(mTransmission));
@@ -113,4 +135,26 @@ public final class InMessage extends KonMessage implements DecryptMessage {
         hash = 67 * hash + Objects.hash(mTransmission);
         return hash;
     }
+
+    /**
+     * Get database IDs of incoming messages from a contact that are still
+     * encrypted or not verified.
+     */
+    public static Set<Integer> loadUnverifiedIDs(Database db, Contact sender) {
+        String select = "SELECT m._id FROM " + TABLE + " m" +
+                " INNER JOIN " + Transmission.TABLE + " t" +
+                " ON t." + Transmission.COL_MESSAGE_ID + " = m._id" +
+                " WHERE t." + Transmission.COL_CONTACT_ID + " = ?" +
+                " AND m." + COL_STATUS + " = ?" +
+                " AND (m." + COL_ENCR_STAT + " = ? OR m." + COL_SIGN_STAT + " = ?)";
+        Set<Integer> ids = new HashSet<>();
+        try (ResultSet rs = db.execSelect(select, Arrays.asList(sender.getID(),
+                Status.IN, Coder.Encryption.ENCRYPTED, Coder.Signing.SIGNED))) {
+            while (rs.next())
+                ids.add(rs.getInt(1));
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't load unverified messages", ex);
+        }
+        return ids;
+    }
 }
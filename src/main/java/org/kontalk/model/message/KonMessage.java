@@ -114,6 +114,9 @@ public abstract class KonMessage extends Observable implements Searchable, Obser
             COL_SERV_DATE + " INTEGER, " +
             "FOREIGN KEY (" + COL_CHAT_ID + ") REFERENCES " + Chat.TABLE + " (_id) " +
             ")";
+    // index name and columns
+    public static final String[] INDEX_CODER_STATUS = {"messages_coder_idx",
+        COL_STATUS, COL_ENCR_STAT, COL_SIGN_STAT};
 
     final int mID;
     private final Chat mChat;
@@ -135,10 +135,19 @@ public class MessageContent {
         return mEncryptedContent;
     }
 
-    void setDecryptedContent(MessageContent decryptedContent) {
+    /**
+     * Set decrypted content.
+     * @param keepEncrypted keep the encrypted data (e.g. to verify again later)
+     */
+    void setDecryptedContent(MessageContent decryptedContent, boolean keepEncrypted) {
         assert mDecryptedContent == null;
         mDecryptedContent = decryptedContent;
-        // deleting encrypted data!
+        if (!keepEncrypted)
+            // deleting encrypted data!
+            mEncryptedContent = "";
+    }
+
+    void dropEncryptedContent() {
         mEncryptedContent = "";
     }
 
@@ -62,7 +62,7 @@ public final class ProtoMessage implements DecryptMessage {
         return mCoderStatus.isEncrypted();
     }
 
-    MessageContent getContent() {
+    public MessageContent getContent() {
         return mContent;
     }
 
@@ -73,7 +73,9 @@ public final class ProtoMessage implements DecryptMessage {
 
     @Override
     public void setDecryptedContent(MessageContent content) {
-        mContent.setDecryptedContent(content);
+        // signature not verified: keep data to try again when key is available
+        mContent.setDecryptedContent(content,
+                mCoderStatus.getSigning() == Coder.Signing.SIGNED);
         mCoderStatus.setDecrypted();
     }
 
@@ -51,7 +51,7 @@ final public class Transmission {
 
     public static final String TABLE = "transmissions";
     public static final String COL_MESSAGE_ID = "message_id";
-    private static final String COL_CONTACT_ID = "user_id";
+    static final String COL_CONTACT_ID = "user_id";
     private static final String COL_JID = "jid";
     private static final String COL_REC_DATE = "received_date";
     public static final String SCHEMA = "( " +
@@ -67,6 +67,8 @@ final public class Transmission {
             "FOREIGN KEY ("+COL_MESSAGE_ID+") REFERENCES "+KonMessage.TABLE+" (_id) " +
             "FOREIGN KEY ("+COL_CONTACT_ID+") REFERENCES "+Contact.TABLE+" (_id) " +
             ")";
+    // index name and columns
+    public static final String[] INDEX_CONTACT = {"transmissions_contact_idx", COL_CONTACT_ID};
 
     private final int mID;
 
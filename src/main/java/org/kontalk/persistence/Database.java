@@ -32,6 +32,7 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -62,12 +63,17 @@ public final class Database {
     public static final String SQL_ID = "_id INTEGER PRIMARY KEY AUTOINCREMENT, ";
 
     private static final String FILENAME = "kontalk_db.sqlite";
-    private static final int DB_VERSION = 5;
+    private static final int DB_VERSION = 7;
     private static final String SQL_CREATE = "CREATE TABLE IF NOT EXISTS ";
+    private static final String SQL_CREATE_INDEX = "CREATE INDEX IF NOT EXISTS ";
     private static final String SV = "schema_version";
     private static final String UV = "user_version";
 
     private Connection mConn = null;
+    // commits are deferred while > 0
+    private int mTransactionDepth = 0;
+    // run after the next real commit
+    private final List<Consumer<Boolean>> mAfterCommit = new ArrayList<>();
 
     public Database(Path appDir) throws KonException {
         // load the sqlite-JDBC driver using the current class loader
@@ -117,6 +123,8 @@ public final class Database {
                 this.createTable(stat, Member.TABLE, Member.SCHEMA);
                 this.createTable(stat, KonMessage.TABLE, KonMessage.SCHEMA);
                 this.createTable(stat, Transmission.TABLE, Transmission.SCHEMA);
+                this.createIndices(stat);
+                this.commit();
             } catch (SQLException ex) {
                 LOGGER.log(Level.SEVERE, "can't create tables", ex);
                 throw new KonException(KonException.Error.DB, ex);
@@ -146,6 +154,19 @@ public final class Database {
         stat.executeUpdate(SQL_CREATE + table + " " + schema);
     }
 
+    private void createIndices(Statement stat) throws SQLException {
+        this.createIndex(stat, Transmission.TABLE, Transmission.INDEX_CONTACT);
+        this.createIndex(stat, KonMessage.TABLE, KonMessage.INDEX_CODER_STATUS);
+        this.createIndex(stat, Contact.TABLE, Contact.INDEX_KEY_FP);
+        this.createIndex(stat, Contact.TABLE, Contact.INDEX_SIGN_KEY_ID);
+    }
+
+    private void createIndex(Statement stat, String table, String[] index) throws SQLException {
+        // first element is the index name, the rest are columns
+        stat.executeUpdate(SQL_CREATE_INDEX + index[0] + " ON " + table +
+                " (" + StringUtils.join(index, ", ", 1, index.length) + ")");
+    }
+
     private void update(int fromVersion) throws SQLException {
         if (fromVersion < 1) {
             mConn.createStatement().execute("ALTER TABLE "+Chat.TABLE+
@@ -184,6 +205,16 @@ public final class Database {
             mConn.createStatement().execute("ALTER TABLE "+Member.TABLE+
                     " ADD COLUMN "+Member.COL_ROLE+" DEFAULT 0");
         }
+        if (fromVersion < 7) {
+            // metadata is filled on next contact loading
+            for (String col : new String[]{Contact.COL_SIGN_KEY_ID,
+                    Contact.COL_ENCR_KEY_ID, Contact.COL_KEY_UID, Contact.COL_KEY_EXPIRY}) {
+                mConn.createStatement().execute("ALTER TABLE "+Contact.TABLE+
+                        " ADD COLUMN "+col+" DEFAULT NULL");
+            }
+            // including indices of version 6
+            this.createIndices(mConn.createStatement());
+        }
 
         // set new version
         mConn.createStatement().execute("PRAGMA "+UV+" = "+DB_VERSION);
@@ -220,6 +251,21 @@ public final class Database {
         return this.execQuery("SELECT * FROM " + table + " WHERE " + where);
     }
 
+    /**
+     * Select with an arbitrary query, values are inserted for '?' parameters.
+     * The returned ResultSet must be closed by the caller after usage!
+     */
+    public ResultSet execSelect(String select, List<Object> values) throws SQLException {
+        try {
+            PreparedStatement stat = mConn.prepareStatement(select);
+            insertValues(stat, values);
+            return stat.executeQuery();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't execute select: " + select, ex);
+            throw ex;
+        }
+    }
+
     private ResultSet execQuery(String select) throws SQLException {
         try {
             PreparedStatement stat = mConn.prepareStatement(select);
@@ -253,7 +299,7 @@ public final class Database {
                 Statement.RETURN_GENERATED_KEYS)) {
             insertValues(stat, values);
             stat.executeUpdate();
-            mConn.commit();
+            this.commit();
             ResultSet keys = stat.getGeneratedKeys();
             return keys.getInt(1);
         } catch (SQLException ex) {
@@ -280,7 +326,7 @@ public final class Database {
         try (PreparedStatement stat = mConn.prepareStatement(update, Statement.RETURN_GENERATED_KEYS)) {
             insertValues(stat, keyList, set);
             stat.executeUpdate();
-            mConn.commit();
+            this.commit();
             stat.getGeneratedKeys();
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't execute update: " + update + " " + set, ex);
@@ -299,14 +345,66 @@ public final class Database {
         return true;
     }
 
-    public boolean commit() {
+    /**
+     * Start a transaction: following changes are committed together when the
+     * transaction ends. Transactions can be nested, changes are committed
+     * with the end of the outermost transaction.
+     * NOTE: this applies to changes from all threads. Changes are not durable
+     * when endTransaction() returns if another thread is in a transaction,
+     * use {@link #afterCommit} to wait for the commit.
+     */
+    public synchronized void beginTransaction() {
+        mTransactionDepth++;
+    }
+
+    /**
+     * Run a callback when all changes made so far are committed: at once if
+     * no transaction is open, else after the end of the outermost
+     * transaction (of any thread). The callback gets false if committing
+     * failed. It is run on the committing thread while holding the database
+     * lock, it must not block.
+     */
+    public synchronized void afterCommit(Consumer<Boolean> callback) {
+        if (mTransactionDepth > 0)
+            mAfterCommit.add(callback);
+        else
+            callback.accept(true);
+    }
+
+    public synchronized boolean endTransaction() {
+        if (mTransactionDepth <= 0) {
+            LOGGER.warning("no transaction started");
+            return false;
+        }
+        mTransactionDepth--;
+        return this.commit();
+    }
+
+    public synchronized boolean commit() {
+        if (mTransactionDepth > 0)
+            // deferred
+            return true;
+
+        boolean succ = true;
         try {
             mConn.commit();
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't commit", ex);
-            return false;
+            succ = false;
         }
-        return true;
+
+        if (!mAfterCommit.isEmpty()) {
+            List<Consumer<Boolean>> callbacks = new ArrayList<>(mAfterCommit);
+            mAfterCommit.clear();
+            for (Consumer<Boolean> callback : callbacks) {
+                try {
+                    callback.accept(succ);
+                } catch (RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "after commit callback failed", ex);
+                }
+            }
+        }
+        return succ;
     }
 
     private static void insertValues(PreparedStatement stat,
@@ -330,6 +428,8 @@ public final class Database {
                 stat.setString(i+1, (String) value);
             } else if (value instanceof Integer) {
                 stat.setInt(i+1, (int) value);
+            } else if (value instanceof Long) {
+                stat.setLong(i+1, (long) value);
             } else if (value instanceof Date) {
                 stat.setLong(i+1, ((Date) value).getTime());
             } else if (value instanceof Boolean) {
@@ -35,6 +35,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.kontalk.client.Client;
 import org.kontalk.client.HTTPFileClient;
@@ -206,11 +207,22 @@ public class AttachmentManager implements Runnable {
 
         // if text will be encrypted, always encrypt attachment too
         boolean encrypt = message.getCoderStatus().getEncryption() == Encryption.DECRYPTED;
+        Config config = Config.getInstance();
+        int bufferSize = config.getInt(Config.NET_CRYPTO_BUFFER_SIZE);
+        // encrypt directly into the request stream, no temporary file needed
+        boolean streaming = encrypt && config.getBoolean(Config.NET_CHUNKED_UPLOAD);
+        PersonalKey myKey = null;
         if (encrypt) {
-            PersonalKey myKey = mControl.myKey().orElse(null);
-            File encryptFile = myKey == null ?
-                    null :
-                    Coder.encryptAttachment(myKey, message, file).orElse(null);
+            myKey = mControl.myKey().orElse(null);
+            if (myKey == null) {
+                if (!file.equals(original))
+                    delete(file);
+                return;
+            }
+        }
+        if (encrypt && !streaming) {
+            File encryptFile = Coder.encryptAttachment(myKey, message, file, bufferSize)
+                    .orElse(null);
             if (!file.equals(original))
                 delete(file);
             if (encryptFile == null)
@@ -221,21 +233,37 @@ public class AttachmentManager implements Runnable {
         }
 
         HTTPFileClient client = this.clientOrNull();
-        if (client == null)
+        if (client == null) {
+            if (!file.equals(original))
+                delete(file);
             return;
+        }
 
-        long length = file.length();
+        // when streaming the encrypted size is unknown in advance, request a
+        // slot for the upper bound (server must allow chunked uploads)
+        long length = streaming ?
+                Coder.maxEncryptedSize(file.length(), message.getTransmissions().size(), bufferSize) :
+                file.length();
         Slot uploadSlot = mClient.getUploadSlot(uploadName, length, mime);
         if (uploadSlot.uploadURL.toString().isEmpty() ||
                 uploadSlot.downloadURL.toString().isEmpty()) {
             LOGGER.warning("empty slot: "+attachment);
+            if (!file.equals(original))
+                delete(file);
             return;
         }
 
         try {
-            client.upload(file, uploadSlot.uploadURL, mime, encrypt);
+            if (streaming) {
+                length = uploadEncrypted(client, myKey, message, file, bufferSize,
+                        uploadSlot.uploadURL, mime);
+            } else {
+                client.upload(file, uploadSlot.uploadURL, mime, encrypt);
+            }
         } catch (KonException ex) {
             LOGGER.warning("upload failed, attachment: "+attachment);
+            if (!file.equals(original))
+                delete(file);
             message.setStatus(KonMessage.Status.ERROR);
             mControl.onException(ex);
             return;
@@ -253,6 +281,24 @@ public class AttachmentManager implements Runnable {
             mControl.sendMessage(message);
     }
 
+    /**
+     * Encrypt and upload in one pass.
+     * @return the number of uploaded (encrypted) bytes
+     */
+    private static long uploadEncrypted(HTTPFileClient client, PersonalKey myKey,
+            OutMessage message, File file, int bufferSize, URI uploadURL, String mime)
+            throws KonException {
+        long[] written = {0};
+        client.upload(out -> {
+                CountingOutputStream cOut = new CountingOutputStream(out);
+                if (!Coder.encryptAttachment(myKey, message, file, cOut, bufferSize))
+                    throw new IOException("can't encrypt attachment");
+                written[0] = cOut.getByteCount();
+            },
+            uploadURL, mime, true);
+        return written[0];
+    }
+
     private void downloadAsync(final InMessage message) {
         InAttachment attachment = message.getContent().getInAttachment().orElse(null);
         if (attachment == null) {
@@ -0,0 +1,257 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.PersonalKey;
+import org.kontalk.misc.ViewEvent;
+import org.kontalk.model.Contact;
+import org.kontalk.model.Model;
+import org.kontalk.model.chat.Chat;
+import org.kontalk.model.message.DecryptMessage;
+import org.kontalk.model.message.InMessage;
+import org.kontalk.model.message.MessageContent;
+import org.kontalk.persistence.Database;
+
+/**
+ * Background job for decrypting and verifying all old incoming messages of a
+ * contact, e.g. after the public key of the contact was received.
+ *
+ * Messages are decrypted in parallel batches. The results of one batch are
+ * applied and saved on the job thread in one database transaction, the
+ * database connection is not shared between threads.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class BulkDecryption {
+    private static final Logger LOGGER = Logger.getLogger(BulkDecryption.class.getName());
+
+    private static final int BATCH_SIZE = 64;
+
+    private final Control mControl;
+    private final Model mModel;
+    private final Database mDB;
+    private final Consumer<InMessage> mOnDecrypted;
+    // one job at a time
+    private final ExecutorService mJobExecutor;
+    private final ExecutorService mWorkers;
+    private final List<Future<?>> mJobs = new ArrayList<>();
+
+    BulkDecryption(Control control, Model model, Database db,
+            Consumer<InMessage> onDecrypted) {
+        mControl = control;
+        mModel = model;
+        mDB = db;
+        mOnDecrypted = onDecrypted;
+        mJobExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Bulk Decryption");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mWorkers = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                r -> {
+                    Thread thread = new Thread(r, "Bulk Decryption Worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /** Queue a new job for all messages of a contact. */
+    synchronized void start(Contact contact) {
+        mJobs.removeIf(Future::isDone);
+        mJobs.add(mJobExecutor.submit(() -> this.run(contact)));
+    }
+
+    /** Cancel all running and queued jobs. */
+    synchronized void cancel() {
+        mJobs.forEach(job -> job.cancel(true));
+        mJobs.clear();
+    }
+
+    void shutDown() {
+        this.cancel();
+        mJobExecutor.shutdownNow();
+        mWorkers.shutdownNow();
+    }
+
+    private void run(Contact contact) {
+        PersonalKey myKey = mControl.myKey().orElse(null);
+        if (myKey == null)
+            return;
+
+        // indexed query, then get the model objects
+        Set<Integer> ids = InMessage.loadUnverifiedIDs(mDB, contact);
+        if (ids.isEmpty())
+            return;
+
+        List<InMessage> messages = new ArrayList<>(ids.size());
+        for (Chat chat : mModel.chats().getAll()) {
+            if (!chat.getAllContacts().contains(contact))
+                continue;
+            chat.getMessages().getByIDs(ids).stream()
+                    .filter(m -> m instanceof InMessage)
+                    .map(m -> (InMessage) m)
+                    .filter(InMessage::canBeVerified)
+                    .forEach(messages::add);
+        }
+
+        int total = messages.size();
+        LOGGER.info("contact: "+contact+", messages: "+total);
+        int verified = 0;
+        int done = 0;
+        while (done < total) {
+            if (Thread.currentThread().isInterrupted()) {
+                LOGGER.info("cancelled, done: "+done+"/"+total);
+                break;
+            }
+
+            List<Result> batch = messages
+                    .subList(done, Math.min(done + BATCH_SIZE, total)).stream()
+                    .map(Result::new)
+                    .collect(Collectors.toList());
+
+            try {
+                mWorkers.invokeAll(batch.stream()
+                        .map(r -> (Callable<Void>) () -> {
+                            r.decrypt(myKey);
+                            return null;
+                        })
+                        .collect(Collectors.toList()));
+            } catch (InterruptedException ex) {
+                LOGGER.info("interrupted, done: "+done+"/"+total);
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            List<InMessage> decrypted = new ArrayList<>();
+            mDB.beginTransaction();
+            try {
+                for (Result result : batch) {
+                    if (result.apply())
+                        decrypted.add(result.message);
+                    if (result.verified())
+                        verified++;
+                }
+            } finally {
+                mDB.endTransaction();
+            }
+            decrypted.forEach(mOnDecrypted);
+            done += batch.size();
+
+            mControl.getViewControl().changed(
+                    new ViewEvent.DecryptionProgress(contact, done, total, false));
+        }
+
+        mControl.getViewControl().changed(
+                new ViewEvent.DecryptionProgress(contact, verified, total, true));
+    }
+
+    /**
+     * Decryption result for a message, applied to the message later.
+     * Decryption and verification only read from the message.
+     */
+    private static final class Result implements DecryptMessage {
+        final InMessage message;
+        private final boolean mWasEncrypted;
+
+        private boolean mSucceeded = false;
+        private Coder.Signing mSigning = null;
+        private EnumSet<Coder.Error> mErrors = null;
+        private MessageContent mContent = null;
+
+        Result(InMessage message) {
+            this.message = message;
+            mWasEncrypted = message.isEncrypted();
+        }
+
+        /** Decrypt or verify, on a worker thread. */
+        void decrypt(PersonalKey myKey) {
+            try {
+                mSucceeded = mWasEncrypted ?
+                        Coder.decryptMessage(myKey, this) :
+                        Coder.verifyMessage(myKey, this);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "can't process message: "+message, ex);
+            }
+        }
+
+        /**
+         * Set the result to the message, on the job thread.
+         * @return true if the message was decrypted
+         */
+        boolean apply() {
+            // same order as set by the decryptor
+            if (mSigning != null)
+                message.setSigning(mSigning);
+            if (mErrors != null)
+                message.setSecurityErrors(mErrors);
+            if (mContent != null)
+                message.setDecryptedContent(mContent);
+            return mWasEncrypted && mSucceeded;
+        }
+
+        boolean verified() {
+            return mSucceeded && mSigning == Coder.Signing.VERIFIED;
+        }
+
+        @Override
+        public Contact getContact() {
+            return message.getContact();
+        }
+
+        @Override
+        public boolean isEncrypted() {
+            return mWasEncrypted;
+        }
+
+        @Override
+        public String getEncryptedContent() {
+            return message.getEncryptedContent();
+        }
+
+        @Override
+        public void setDecryptedContent(MessageContent content) {
+            mContent = content;
+        }
+
+        @Override
+        public void setSigning(Coder.Signing signing) {
+            mSigning = signing;
+        }
+
+        @Override
+        public void setSecurityErrors(EnumSet<Coder.Error> errors) {
+            mErrors = errors;
+        }
+    }
+}
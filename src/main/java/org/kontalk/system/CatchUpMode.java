@@ -0,0 +1,151 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.logging.Logger;
+
+import org.kontalk.model.Model;
+import org.kontalk.model.message.InMessage;
+
+/**
+ * Catch-up mode for many incoming messages at once, e.g. offline messages
+ * after reconnect.
+ *
+ * Started by a delayed message or a high message rate. While active, new
+ * message notifications of chats and the view are suspended. When no more
+ * messages arrive and all are processed, each chat with new messages notifies
+ * once.
+ *
+ * Batching of database writes is done by the incoming message pipeline.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class CatchUpMode {
+    private static final Logger LOGGER = Logger.getLogger(CatchUpMode.class.getName());
+
+    /** Messages delayed longer are offline messages (milliseconds). */
+    private static final long DELAY_THRESHOLD = TimeUnit.SECONDS.toMillis(30);
+    /** Messages per second for burst detection. */
+    private static final int BURST_RATE = 20;
+    /** Mode ends if no messages arrived for this time (milliseconds). */
+    private static final long QUIET_TIME = 1000;
+
+    private final Model mModel;
+    private final Consumer<InMessage> mNotifier;
+    private final IntSupplier mPending;
+    private final ScheduledExecutorService mTimer;
+
+    // guarded by this
+    private boolean mActive = false;
+    private ScheduledFuture<?> mCheck = null;
+    private long mLastIncoming = 0;
+    private long mRateStart = 0;
+    private int mRateCount = 0;
+    private int mProcessed = 0;
+    private InMessage mLastMessage = null;
+
+    /**
+     * @param notifier for the last new message when mode ends
+     * @param pending number of received but not yet processed messages
+     */
+    CatchUpMode(Model model, Consumer<InMessage> notifier, IntSupplier pending) {
+        mModel = model;
+        mNotifier = notifier;
+        mPending = pending;
+        mTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Catch-Up Timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** A new message was received, may start catch-up mode. */
+    synchronized void onIncoming(Optional<Date> serverDate) {
+        long now = System.currentTimeMillis();
+        mLastIncoming = now;
+        if (mActive)
+            return;
+
+        boolean delayed = serverDate.isPresent() &&
+                now - serverDate.get().getTime() > DELAY_THRESHOLD;
+
+        if (now - mRateStart > 1000) {
+            mRateStart = now;
+            mRateCount = 0;
+        }
+        mRateCount++;
+
+        if (delayed || mRateCount >= BURST_RATE)
+            this.start(delayed ? "delayed message" : "message burst");
+    }
+
+    /**
+     * A new message was processed.
+     * @return true if the view notification was deferred
+     */
+    synchronized boolean onProcessed(InMessage message) {
+        if (!mActive)
+            return false;
+
+        mLastMessage = message;
+        mProcessed++;
+        return true;
+    }
+
+    synchronized void shutDown() {
+        if (mActive)
+            this.stop();
+        mTimer.shutdownNow();
+    }
+
+    private void start(String reason) {
+        LOGGER.info("starting, reason: "+reason);
+        mActive = true;
+        mProcessed = 0;
+        mModel.chats().setDeferNewMessages(true);
+        mCheck = mTimer.scheduleWithFixedDelay(this::check,
+                QUIET_TIME, QUIET_TIME / 4, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void check() {
+        if (mActive &&
+                System.currentTimeMillis() - mLastIncoming > QUIET_TIME &&
+                mPending.getAsInt() == 0)
+            this.stop();
+    }
+
+    private void stop() {
+        LOGGER.info("stopping, processed messages: "+mProcessed);
+        mActive = false;
+        mCheck.cancel(false);
+        mModel.chats().setDeferNewMessages(false);
+        if (mLastMessage != null)
+            // one notification for all
+            mNotifier.accept(mLastMessage);
+        mLastMessage = null;
+    }
+}
@@ -18,10 +18,13 @@
 
 package org.kontalk.system;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.jivesoftware.smackx.chatstates.ChatState;
@@ -33,73 +36,138 @@ import org.kontalk.persistence.Config;
 
 /**
  * Manager handling own chat status for all chats.
+ *
+ * All chats share one scheduler thread. Composing events are debounced:
+ * one pending check per chat instead of a new timer task on every
+ * keystroke. State changes are sent after a short delay, only the last
+ * state is sent if it changed again meanwhile.
+ *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
 final class ChatStateManager {
 
-    private static final int COMPOSING_TO_PAUSED = 15; // seconds
+    private static final long COMPOSING_TO_PAUSED = TimeUnit.SECONDS.toNanos(15);
+    private static final long COALESCE_DELAY = 300; // milliseconds
 
     private final Client mClient;
+    // guarded by itself
     private final Map<Chat, MyChatState> mChatStateCache = new WeakHashMap<>();
-    private final Timer mTimer = new Timer("Chat State Timer", true);
+    private final ScheduledExecutorService mTimer;
 
     public ChatStateManager(Client client) {
         mClient = client;
+        mTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Chat State Timer");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     void handleOwnChatStateEvent(Chat chat, ChatState state) {
-        if (!mChatStateCache.containsKey(chat)) {
-            if (state == ChatState.gone)
-                // weare and stay at the default state
-                return;
-            mChatStateCache.put(chat, new MyChatState(chat));
+        MyChatState chatState;
+        synchronized (mChatStateCache) {
+            chatState = mChatStateCache.get(chat);
+            if (chatState == null) {
+                if (state == ChatState.gone)
+                    // weare and stay at the default state
+                    return;
+                chatState = new MyChatState(chat);
+                mChatStateCache.put(chat, chatState);
+            }
         }
 
-        mChatStateCache.get(chat).handleState(state);
+        chatState.handleState(state);
     }
 
     void imGone() {
-        mChatStateCache.values().forEach(chatState -> chatState.handleState(ChatState.gone));
+        List<MyChatState> chatStates;
+        synchronized (mChatStateCache) {
+            chatStates = new ArrayList<>(mChatStateCache.values());
+        }
+        chatStates.forEach(chatState -> chatState.handleState(ChatState.gone));
     }
 
     private class MyChatState {
         private final Chat mChat;
-        private ChatState mCurrentState;
-        private TimerTask mScheduledStateSet = null;
+
+        // guarded by this
+        private ChatState mCurrentState = null;
+        private ChatState mSentState = null;
+        private long mLastComposing = 0;
+        private ScheduledFuture<?> mPausedCheck = null;
+        private ScheduledFuture<?> mFlush = null;
 
         private MyChatState(Chat chat) {
             mChat = chat;
         }
 
-        private void handleState(ChatState state) {
-            if (mScheduledStateSet != null)
+        private synchronized void handleState(ChatState state) {
+            if (state == ChatState.composing) {
+                mLastComposing = System.nanoTime();
+                if (mPausedCheck == null)
+                    mPausedCheck = mTimer.schedule(this::checkPaused,
+                            COMPOSING_TO_PAUSED, TimeUnit.NANOSECONDS);
+            } else if (mPausedCheck != null) {
                 // whatever we wanted to set next, thats obsolete now
-                mScheduledStateSet.cancel();
+                mPausedCheck.cancel(false);
+                mPausedCheck = null;
+            }
 
-            if (state != mCurrentState)
-                this.setNewState(state);
+            if (state == mCurrentState)
+                return;
 
-            if (state == ChatState.composing) {
-                mScheduledStateSet = new TimerTask() {
-                    @Override
-                    public void run() {
-                        // NOTE: using 'inactive' instead of 'paused' here as
-                        // 'inactive' isn't send at all
-                        MyChatState.this.handleState(ChatState.inactive);
-                    }
-                };
-                mTimer.schedule(mScheduledStateSet,
-                        TimeUnit.SECONDS.toMillis(COMPOSING_TO_PAUSED));
+            // currently set states from XEP-0085: active, inactive, composing
+            mCurrentState = state;
+
+            if (state == ChatState.active) {
+                // 'active' is send inside a message
+                mSentState = state;
+                this.cancelFlush();
+            } else if (state == ChatState.gone) {
+                // send now, probably disconnecting
+                this.cancelFlush();
+                this.flush();
+            } else if (mFlush == null) {
+                mFlush = mTimer.schedule(this::flush, COALESCE_DELAY, TimeUnit.MILLISECONDS);
             }
         }
 
-        private void setNewState(ChatState state) {
-            // currently set states from XEP-0085: active, inactive, composing
-            mCurrentState = state;
+        private synchronized void checkPaused() {
+            mPausedCheck = null;
+            if (mCurrentState != ChatState.composing)
+                return;
+
+            long remaining = COMPOSING_TO_PAUSED - (System.nanoTime() - mLastComposing);
+            if (remaining > 0) {
+                // still typing
+                mPausedCheck = mTimer.schedule(this::checkPaused, remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+
+            // NOTE: using 'inactive' instead of 'paused' here as
+            // 'inactive' isn't send at all
+            this.handleState(ChatState.inactive);
+        }
 
-            if (state == ChatState.active || !(mChat instanceof SingleChat))
+        private synchronized void flush() {
+            mFlush = null;
+            if (mCurrentState == mSentState)
+                return;
+
+            mSentState = mCurrentState;
+            this.send(mCurrentState);
+        }
+
+        private void cancelFlush() {
+            if (mFlush != null) {
+                mFlush.cancel(false);
+                mFlush = null;
+            }
+        }
+
+        private void send(ChatState state) {
+            if (!(mChat instanceof SingleChat))
                 // don't send for groups (TODO (?))
-                // 'active' is send inside a message
                 return;
 
             Contact contact = ((SingleChat) mChat).getMember().getContact();
@@ -30,8 +30,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Observable;
 import java.util.Optional;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -41,6 +40,7 @@ import org.jivesoftware.smack.packet.StanzaError;
 import org.jivesoftware.smackx.chatstates.ChatState;
 import org.kontalk.client.Client;
 import org.kontalk.client.FeatureDiscovery;
+import org.kontalk.client.HKPClient;
 import org.kontalk.client.KonMessageSender;
 import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PGPUtils;
@@ -95,9 +95,6 @@ public final class Control {
         ERROR
     }
 
-    /** Interval between retry connection attempts after failure. */
-    private static final int RETRY_TIMER_INTERVAL = 20; // seconds
-
     private final ViewControl mViewControl;
 
     private final Database mDB;
@@ -108,9 +105,16 @@ public final class Control {
     private final RosterHandler mRosterHandler;
     private final AvatarHandler mAvatarHandler;
     private final GroupControl mGroupControl;
+    private final InMessagePipeline mInPipeline;
+    private final CatchUpMode mCatchUp;
+    private final BulkDecryption mBulkDecryption;
+    private final SendPipeline mSendPipeline;
+    private final ReconnectScheduler mReconnect;
+    private final LastActivityScheduler mLastActivity;
+    private final KeyRequestManager mKeyRequests;
+    private final HKPClient mHKPClient;
 
     private boolean mShuttingDown = false;
-    private Timer mRetryTimer = null;
 
     public Control(Path appDir) throws KonException {
         mViewControl = new ViewControl();
@@ -129,9 +133,19 @@ public final class Control {
         mClient = Client.create(this, appDir);
         mChatStateManager = new ChatStateManager(mClient);
         mAttachmentManager = AttachmentManager.create(this, mClient, appDir);
-        mRosterHandler = new RosterHandler(this, mClient, mModel);
+        mHKPClient = new HKPClient(appDir);
+        mRosterHandler = new RosterHandler(this, mClient, mModel, mDB, mHKPClient);
         mAvatarHandler = new AvatarHandler(mClient, mModel);
         mGroupControl = new GroupControl(this, mModel);
+        mInPipeline = new InMessagePipeline(mDB, this::myKey, this::onProcessedInMessage);
+        mCatchUp = new CatchUpMode(mModel, this::notifyNewMessage,
+                this::pendingInMessages);
+        mBulkDecryption = new BulkDecryption(this, mModel, mDB, this::processContent);
+        mSendPipeline = new SendPipeline(this);
+        mLastActivity = new LastActivityScheduler(mClient, mModel);
+        mKeyRequests = new KeyRequestManager(mClient);
+        mReconnect = new ReconnectScheduler(mViewControl::connect,
+                countDown -> mViewControl.changed(new ViewEvent.RetryTimerMessage(countDown)));
     }
 
     public void launch(boolean ui) {
@@ -171,6 +185,14 @@ public final class Control {
         mViewControl.changed(new ViewEvent.StatusChange(Status.SHUTTING_DOWN,
                 EnumSet.noneOf(FeatureDiscovery.Feature.class)));
 
+        mInPipeline.shutDown();
+        mCatchUp.shutDown();
+        mSendPipeline.shutDown();
+        mReconnect.shutDown();
+        mLastActivity.shutDown();
+        mKeyRequests.shutDown();
+        mHKPClient.shutDown();
+        mBulkDecryption.shutDown();
         mModel.onShutDown();
         try {
             mDB.close();
@@ -190,6 +212,11 @@ public final class Control {
         return mRosterHandler;
     }
 
+    /** Date of the newest incoming message, server date if known. */
+    public Optional<Date> getLastInMessageDate() {
+        return mModel.chats().getLastInMessageDate();
+    }
+
     public AvatarHandler getAvatarHandler() {
         return mAvatarHandler;
     }
@@ -203,13 +230,30 @@ public final class Control {
     public void onStatusChange(Status status, EnumSet<FeatureDiscovery.Feature> features) {
         mViewControl.changed(new ViewEvent.StatusChange(status, features));
 
+        if (status != Status.CONNECTED && status != Status.CONNECTING) {
+            // requests are lost anyway
+            mLastActivity.cancel();
+            mKeyRequests.cancel();
+        }
+
         Config config = Config.getInstance();
         if (status == Status.CONNECTED) {
+            boolean resumed = mClient.streamWasResumed();
+            mReconnect.onConnected(resumed);
+
+            // send all pending messages; with a resumed stream, messages
+            // written before are resent by stream management
+            for (Chat chat: mModel.chats())
+                chat.getMessages().getPending().stream()
+                        .filter(m -> !resumed || !mClient.isSending(m.getXMPPID()))
+                        .forEach(this::sendMessage);
+
+            // resumed stream: presence still valid, no need for key requests
+            if (resumed)
+                return;
+
             String[] strings = config.getStringArray(Config.NET_STATUS_LIST);
             mClient.sendUserPresence(strings.length > 0 ? strings[0] : "");
-            // send all pending messages
-            for (Chat chat: mModel.chats())
-                chat.getMessages().getPending().forEach(this::sendMessage);
 
             // send public key requests for Kontalk contacts with missing key
             for (Contact contact : mModel.contacts().getAll(false, false))
@@ -218,29 +262,20 @@ public final class Control {
             // TODO check current user avatar on server and upload if necessary
 
         } else if (status == Status.DISCONNECTED || status == Status.FAILED) {
-            for (Contact contact : mModel.contacts().getAll(false, false))
-                contact.setOnlineStatus(Contact.Online.UNKNOWN);
+            mRosterHandler.onDisconnected();
         }
 
         if ((status == Status.FAILED || status == Status.ERROR)
                     && config.getBoolean(Config.NET_RETRY_CONNECT)) {
-            mRetryTimer = new Timer("Retry Timer", true);
-            TimerTask task = new TimerTask() {
-                private int mCountDown = RETRY_TIMER_INTERVAL;
-
-                @Override
-                public void run() {
-                    if (mCountDown > 0) {
-                        mViewControl.changed(new ViewEvent.RetryTimerMessage(mCountDown--));
-                    } else {
-                        mViewControl.connect();
-                    }
-                }
-            };
-            mRetryTimer.schedule(task, 0, 1000);
+            mReconnect.onFailure();
         }
     }
 
+    /** Server features changed while connected. */
+    public void onServerFeatures(EnumSet<FeatureDiscovery.Feature> features) {
+        mViewControl.changed(new ViewEvent.StatusChange(Status.CONNECTED, features));
+    }
+
     public void onAuthenticated(JID jid) {
         mModel.setUserJID(jid);
     }
@@ -268,23 +303,40 @@ public final class Control {
     /**
      * All-in-one method for a new incoming message (except handling server
      * receipts): Create, save and process the message.
+     *
+     * Processing is done asynchronously, messages of a chat are saved in the
+     * order this method is called.
+     * @param onProcessed run after the message was processed and saved (also
+     * if processing failed); not run if the message could not be committed
+     * to the database
      */
     public void onNewInMessage(MessageIDs ids,
             Optional<Date> serverDate,
-            MessageContent content) {
+            MessageContent content,
+            Runnable onProcessed) {
         LOGGER.info("new incoming message, "+ids);
 
         Contact sender = this.getOrCreateContact(ids.jid).orElse(null);
         if (sender == null) {
             LOGGER.warning("can't get contact for message");
+            onProcessed.run();
             return;
         }
 
+        mCatchUp.onIncoming(serverDate);
+
         // decrypt message now to get possible group data
         ProtoMessage protoMessage = new ProtoMessage(sender, content);
-        if (protoMessage.isEncrypted()) {
-            this.myKey().ifPresent(mk -> Coder.decryptMessage(mk, protoMessage));
-        }
+        mInPipeline.submit(protoMessage,
+                pm -> this.onDecryptedInMessage(ids, serverDate, pm),
+                onProcessed);
+    }
+
+    private Optional<InMessage> onDecryptedInMessage(MessageIDs ids,
+            Optional<Date> serverDate,
+            ProtoMessage protoMessage) {
+        Contact sender = protoMessage.getContact();
+        MessageContent content = protoMessage.getContent();
 
         // NOTE: decryption must be successful to select group chat
         GroupMetaData groupData = content.getGroupData().orElse(null);
@@ -293,13 +345,13 @@ public final class Control {
                 mModel.chats().getOrCreate(sender, ids.xmppThreadID);
         if (chat == null) {
             LOGGER.warning("no chat found, message lost: "+protoMessage);
-            return;
+            return Optional.empty();
         }
 
         InMessage newMessage = mModel.createInMessage(
                 protoMessage, chat, ids, serverDate).orElse(null);
         if (newMessage == null)
-            return;
+            return Optional.empty();
 
         GroupCommand com = newMessage.getContent().getGroupCommand().orElse(null);
         if (com != null) {
@@ -313,7 +365,20 @@ public final class Control {
 
         this.processContent(newMessage);
 
-        mViewControl.changed(new ViewEvent.NewMessage(newMessage));
+        return Optional.of(newMessage);
+    }
+
+    private void onProcessedInMessage(InMessage message) {
+        if (!mCatchUp.onProcessed(message))
+            this.notifyNewMessage(message);
+    }
+
+    private void notifyNewMessage(InMessage message) {
+        mViewControl.changed(new ViewEvent.NewMessage(message));
+    }
+
+    private int pendingInMessages() {
+        return mInPipeline.inFlight();
     }
 
     public void onMessageSent(MessageIDs ids) {
@@ -377,6 +442,8 @@ public final class Control {
     }
 
     void onPGPKey(Contact contact, byte[] rawKey) {
+        mKeyRequests.onAnswer(contact.getJID());
+
         PGPCoderKey key = PGPUtils.readPublicKey(rawKey).orElse(null);
         if (key == null) {
             LOGGER.warning("invalid public PGP key, contact: "+contact);
@@ -449,42 +516,67 @@ public final class Control {
 
     /* package */
 
+    /** Queue last activity request, rate-limited. */
+    void requestLastActivity(Contact contact) {
+        mLastActivity.request(contact);
+    }
+
     /**
       * All-in-one method for a new outgoing message: Create,
       * save, process and send message.
       */
     boolean createAndSendMessage(Chat chat, MessageContent content) {
+        OutMessage newMessage = this.createOutMessage(chat, content).orElse(null);
+        if (newMessage == null)
+            return false;
+
+        this.mayCreatePreview(newMessage);
+
+        return this.sendMessage(newMessage);
+    }
+
+    /** Create and save a new outgoing message with status pending. */
+    Optional<OutMessage> createOutMessage(Chat chat, MessageContent content) {
         LOGGER.config("chat: "+chat+" content: "+content);
 
         if (!chat.isValid()) {
                 LOGGER.warning("invalid chat");
-                return false;
+                return Optional.empty();
         }
 
         List<Contact> contacts = chat.getValidContacts();
         if (contacts.isEmpty()) {
             LOGGER.warning("can't send message, no (valid) contact(s)");
-            return false;
+            return Optional.empty();
         }
 
-        OutMessage newMessage = mModel.createOutMessage(
-                chat, contacts, content).orElse(null);
-        if (newMessage == null)
-            return false;
-
-        if (newMessage.getContent().getOutAttachment().isPresent())
-            mAttachmentManager.mayCreateImagePreview(newMessage);
+        return mModel.createOutMessage(chat, contacts, content);
+    }
 
-        return this.sendMessage(newMessage);
+    void mayCreatePreview(OutMessage message) {
+        if (message.getContent().getOutAttachment().isPresent())
+            mAttachmentManager.mayCreateImagePreview(message);
     }
 
     boolean sendMessage(OutMessage message) {
+        SendTask task = this.prepareSendTask(message).orElse(null);
+        if (task == null)
+            return false;
+
+        return this.sendPrepared(task);
+    }
+
+    /**
+     * Create send task for message, including encryption of content.
+     * Empty if the message can't be send now, or an error occurred.
+     */
+    Optional<SendTask> prepareSendTask(OutMessage message) {
         final MessageContent content = message.getContent();
         final OutAttachment attachment = content.getOutAttachment().orElse(null);
         if (attachment != null && !attachment.hasURL()) {
             // continue later...
             mAttachmentManager.queueUpload(message);
-            return false;
+            return Optional.empty();
         }
 
         final SendTask task = new SendTask(message,
@@ -496,7 +588,7 @@ public final class Control {
             // prepare encrypted content
             PersonalKey myKey = this.myKey().orElse(null);
             if (myKey == null)
-                return false;
+                return Optional.empty();
 
             String encryptedData = "";
             if (task.encryption == Encryption.XEP0373) {
@@ -519,7 +611,7 @@ public final class Control {
                 LOGGER.warning("encryption failed ("+task.encryption+")");
                 message.setStatus(KonMessage.Status.ERROR);
                 this.onSecurityErrors(message);
-                return false;
+                return Optional.empty();
             } else {
                 LOGGER.config("encryption successful ("+task.encryption+")");
             }
@@ -527,8 +619,12 @@ public final class Control {
             task.setEncryptedData(encryptedData);
         }
 
+        return Optional.of(task);
+    }
+
+    boolean sendPrepared(SendTask task) {
         final boolean sent = mClient.sendMessage(task);
-        mChatStateManager.handleOwnChatStateEvent(message.getChat(), ChatState.active);
+        mChatStateManager.handleOwnChatStateEvent(task.message.getChat(), ChatState.active);
         return sent;
     }
 
@@ -544,12 +640,20 @@ public final class Control {
     }
 
     void sendKeyRequest(Contact contact) {
+        this.sendKeyRequest(contact, false);
+    }
+
+    /**
+     * Queue public key request for contact.
+     * @param force request even if contact did not answer last time
+     */
+    void sendKeyRequest(Contact contact, boolean force) {
         if (!canSendKeyRequest(contact)) {
             LOGGER.warning("better do not, contact: "+contact);
             return;
         }
 
-        mClient.sendPublicKeyRequest(contact.getJID());
+        mKeyRequests.request(contact.getJID(), force);
     }
 
     Optional<Contact> getOrCreateContact(JID jid) {
@@ -607,27 +711,29 @@ public final class Control {
     }
 
     private void decryptAndProcess(InMessage message) {
-        if (!message.isEncrypted()) {
-            LOGGER.info("message not encrypted");
-        } else {
+        if (message.isEncrypted()) {
             this.myKey().ifPresent(mk -> Coder.decryptMessage(mk, message));
+        } else if (message.canBeVerified()) {
+            this.myKey().ifPresent(mk -> Coder.verifyMessage(mk, message));
+        } else {
+            LOGGER.info("message not encrypted");
         }
 
         this.processContent(message);
     }
 
     private void setKey(Contact contact, PGPCoderKey key) {
-        for (Contact c: mModel.contacts().getAll(true, true)) {
-            if (key.fingerprint.equals(c.getFingerprint())) {
-                LOGGER.warning("key already set, setting for: "+contact+" set for: "+c);
-            }
-        }
+        mModel.contacts().getByFingerprint(key.fingerprint).ifPresent(c ->
+                LOGGER.warning("key already set, setting for: "+contact+" set for: "+c));
 
-        contact.setKey(key.rawKey, key.fingerprint);
+        mModel.contacts().setKey(contact, key);
 
         // enable encryption without asking
         contact.setEncrypted(true);
 
+        // old messages can be verified now
+        mBulkDecryption.start(contact);
+
         // if not set, use uid in key for contact name
         if (contact.getName().isEmpty() && key.userID != null) {
             LOGGER.info("full UID in key: '" + key.userID + "'");
@@ -672,16 +778,18 @@ public final class Control {
                 !contactName.isEmpty() ?
                 contactName :
                 contact.getJID().local();
-        boolean succ = mClient.addToRoster(contact.getJID(), rosterName);
-        if (!succ)
-            LOGGER.warning("can't add contact to roster: "+contact);
+        mClient.addToRoster(contact.getJID(), rosterName).thenAccept(succ -> {
+            if (!succ)
+                LOGGER.warning("can't add contact to roster: "+contact);
+        });
     }
 
-    private void removeFromRoster(JID jid) {
-        boolean succ = mClient.removeFromRoster(jid);
-        if (!succ) {
-            LOGGER.warning("could not remove contact from roster");
-        }
+    private CompletableFuture<Boolean> removeFromRoster(JID jid) {
+        return mClient.removeFromRoster(jid).thenApply(succ -> {
+            if (!succ)
+                LOGGER.warning("could not remove contact from roster");
+            return succ;
+        });
     }
 
     private Optional<OutMessage> findMessage(MessageIDs ids) {
@@ -723,8 +831,7 @@ public final class Control {
         }
 
         public void connect(char[] password) {
-            if (mRetryTimer != null)
-                mRetryTimer.cancel();
+            mReconnect.cancel();
 
             PersonalKey key = this.keyOrNull(password);
             if (key == null)
@@ -734,9 +841,7 @@ public final class Control {
         }
 
         public void disconnect() {
-            // this should not be necessary
-            if (mRetryTimer != null)
-                mRetryTimer.cancel();
+            mReconnect.cancel();
 
             mChatStateManager.imGone();
             mClient.disconnect();
@@ -797,8 +902,9 @@ public final class Control {
             if (!succ)
                 return;
 
-            Control.this.removeFromRoster(oldJID);
-            Control.this.addToRoster(contact);
+            // old entry first
+            Control.this.removeFromRoster(oldJID)
+                    .thenRun(() -> Control.this.addToRoster(contact));
         }
 
         public void changeName(Contact contact, String name) {
@@ -810,7 +916,7 @@ public final class Control {
         }
 
         public void requestKey(Contact contact) {
-            Control.this.sendKeyRequest(contact);
+            Control.this.sendKeyRequest(contact, true);
         }
 
         public void acceptKey(Contact contact, PGPCoderKey key) {
@@ -892,6 +998,15 @@ public final class Control {
             Control.this.decryptAndProcess(message);
         }
 
+        public void cancelBulkDecryption() {
+            mBulkDecryption.cancel();
+        }
+
+        /** Queue depth and latency of incoming message processing. */
+        public String getInMessageMetrics() {
+            return mInPipeline.metricsString();
+        }
+
         public void downloadAgain(InMessage message) {
             Control.this.download(message);
         }
@@ -905,7 +1020,7 @@ public final class Control {
         }
 
         public void sendAgain(OutMessage outMessage) {
-            Control.this.sendMessage(outMessage);
+            mSendPipeline.resend(outMessage);
         }
 
         /* avatar */
@@ -961,7 +1076,8 @@ public final class Control {
                     MessageContent.plainText(text) :
                     MessageContent.outgoing(text, attachment);
 
-            Control.this.createAndSendMessage(chat, content);
+            // not on EDT
+            mSendPipeline.send(chat, content);
         }
 
         private PersonalKey keyOrNull(char[] password) {
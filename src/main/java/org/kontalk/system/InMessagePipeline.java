@@ -0,0 +1,382 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.PersonalKey;
+import org.kontalk.model.message.InMessage;
+import org.kontalk.model.message.ProtoMessage;
+import org.kontalk.persistence.Database;
+
+/**
+ * Staged processing of new incoming messages: decrypt, persist, notify.
+ *
+ * Messages are decrypted in parallel on a pool of worker threads. They are
+ * then persisted on a fixed number of lanes, all messages of one chat on the
+ * same lane and in the order they were submitted. The chat of a group message
+ * is only known after decryption, so messages are assigned to a lane in
+ * submission order after they were decrypted. Group commands (e.g. creating
+ * the group) are so applied before other messages of the group.
+ *
+ * Messages of a lane that are ready at the same time (e.g. during a burst) are
+ * saved in one transaction. Messages are notified only after they were
+ * committed.
+ *
+ * Submitting blocks for a limited time if too many messages are in the
+ * pipeline.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class InMessagePipeline {
+    private static final Logger LOGGER = Logger.getLogger(InMessagePipeline.class.getName());
+
+    /** Maximum number of submitted but not yet notified messages per worker. */
+    private static final int IN_FLIGHT_PER_WORKER = 8;
+    /** Maximum number of parallel persist lanes. */
+    private static final int MAX_LANES = 4;
+    /** Maximum time submitting waits for a saturated pipeline (seconds). */
+    private static final int MAX_SUBMIT_WAIT = 5;
+    /** Log stage metrics after this many messages. */
+    private static final int METRICS_INTERVAL = 100;
+
+    interface Persist {
+        /** Select chat and save message, empty if message was dropped. */
+        Optional<InMessage> onDecrypted(ProtoMessage message);
+    }
+
+    /** Queue depth and latency of one stage. */
+    static final class StageMetrics {
+        final String name;
+        private final AtomicInteger mQueued = new AtomicInteger();
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        private StageMetrics(String name) {
+            this.name = name;
+        }
+
+        int queued() {
+            return mQueued.get();
+        }
+
+        /** Average processing time in microseconds. */
+        long averageMicros() {
+            long count = mCount.get();
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(mTotalNanos.get() / count);
+        }
+
+        long maxMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(mMaxNanos.get());
+        }
+
+        private void enqueued() {
+            mQueued.incrementAndGet();
+        }
+
+        private <T> T measure(Supplier<T> stage) {
+            mQueued.decrementAndGet();
+            long start = System.nanoTime();
+            try {
+                return stage.get();
+            } finally {
+                long nanos = System.nanoTime() - start;
+                mCount.incrementAndGet();
+                mTotalNanos.addAndGet(nanos);
+                mMaxNanos.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name+"[queued="+this.queued()+",avg us="+this.averageMicros()
+                    +",max us="+this.maxMicros()+"]";
+        }
+    }
+
+    /** A submitted message and its processing state. */
+    private static final class Entry {
+        final ProtoMessage message;
+        final Persist persist;
+        final Runnable onProcessed;
+        final CompletableFuture<Void> decrypted;
+        /** Holding a permit of the in-flight semaphore. */
+        final boolean permit;
+        Optional<InMessage> result = Optional.empty();
+
+        Entry(ProtoMessage message, Persist persist, Runnable onProcessed,
+                CompletableFuture<Void> decrypted, boolean permit) {
+            this.message = message;
+            this.persist = persist;
+            this.onProcessed = onProcessed;
+            this.decrypted = decrypted;
+            this.permit = permit;
+        }
+    }
+
+    private final Database mDB;
+    private final Supplier<Optional<PersonalKey>> mKeySupplier;
+    private final Consumer<InMessage> mNotifier;
+    private final ExecutorService mDecryptWorkers;
+    private final Thread mDispatchWorker;
+    private final List<Thread> mPersistWorkers = new ArrayList<>();
+    private final ExecutorService mNotifyWorker;
+    private final Semaphore mInFlightPermits;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    // in submission order
+    private final LinkedBlockingQueue<Entry> mDecryptQueue = new LinkedBlockingQueue<>();
+    // in submission order per chat
+    private final List<LinkedBlockingQueue<Entry>> mLanes = new ArrayList<>();
+
+    private final StageMetrics mDecryptMetrics = new StageMetrics("decrypt");
+    private final StageMetrics mPersistMetrics = new StageMetrics("persist");
+    private final StageMetrics mNotifyMetrics = new StageMetrics("notify");
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mBatches = new AtomicLong();
+
+    InMessagePipeline(Database db, Supplier<Optional<PersonalKey>> keySupplier,
+            Consumer<InMessage> notifier) {
+        this(db, keySupplier, notifier, Runtime.getRuntime().availableProcessors());
+    }
+
+    InMessagePipeline(Database db, Supplier<Optional<PersonalKey>> keySupplier,
+            Consumer<InMessage> notifier,
+            int workers) {
+        mDB = db;
+        mKeySupplier = keySupplier;
+        mNotifier = notifier;
+        workers = Math.max(workers, 1);
+        mDecryptWorkers = Executors.newFixedThreadPool(workers, threadFactory("Decryption Worker"));
+        mDispatchWorker = threadFactory("Dispatch Worker").newThread(this::dispatchLoop);
+        // database writes are serialized, more lanes don't help
+        ThreadFactory persistFactory = threadFactory("Persist Worker");
+        for (int i = 0; i < Math.min(workers, MAX_LANES); i++) {
+            LinkedBlockingQueue<Entry> lane = new LinkedBlockingQueue<>();
+            mLanes.add(lane);
+            mPersistWorkers.add(persistFactory.newThread(() -> this.persistLoop(lane)));
+        }
+        mNotifyWorker = Executors.newSingleThreadExecutor(threadFactory("Notify Worker"));
+        mInFlightPermits = new Semaphore(workers * IN_FLIGHT_PER_WORKER);
+
+        mDispatchWorker.start();
+        mPersistWorkers.forEach(Thread::start);
+    }
+
+    /**
+     * Decrypt message (if encrypted), then persist and notify it after the
+     * previously submitted message of the same chat.
+     * Blocking for a limited time if the pipeline is saturated. The message
+     * is always processed, also if waiting timed out or was interrupted.
+     * @param onProcessed run after the message was processed and committed
+     * to the database (also if processing failed); not run if the database
+     * commit failed
+     */
+    void submit(ProtoMessage message, Persist persist, Runnable onProcessed) {
+        boolean permit;
+        try {
+            permit = mInFlightPermits.tryAcquire(MAX_SUBMIT_WAIT, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, "interrupted while waiting", ex);
+            Thread.currentThread().interrupt();
+            permit = false;
+        }
+        if (!permit)
+            LOGGER.warning("pipeline saturated, in flight="+mInFlight.get());
+        mInFlight.incrementAndGet();
+
+        mDecryptMetrics.enqueued();
+        mPersistMetrics.enqueued();
+        mNotifyMetrics.enqueued();
+
+        // decryption is not ordered
+        CompletableFuture<Void> decrypted = CompletableFuture
+                .runAsync(() -> mDecryptMetrics.measure(() -> this.decrypt(message)),
+                        mDecryptWorkers)
+                .exceptionally(ex -> {
+                    // message stays encrypted, still save it
+                    LOGGER.log(Level.WARNING, "can't decrypt message: "+message, ex);
+                    return null;
+                });
+
+        mDecryptQueue.add(new Entry(message, persist, onProcessed, decrypted, permit));
+
+        if (mSubmitted.incrementAndGet() % METRICS_INTERVAL == 0)
+            LOGGER.config("metrics: "+this.metricsString());
+    }
+
+    /** Metrics of decrypt, persist and notify stage. */
+    StageMetrics[] metrics() {
+        return new StageMetrics[]{mDecryptMetrics, mPersistMetrics, mNotifyMetrics};
+    }
+
+    /** Number of submitted but not yet notified messages. */
+    int inFlight() {
+        return mInFlight.get();
+    }
+
+    /** Metrics of all stages as one line. */
+    String metricsString() {
+        return mDecryptMetrics+" "+mPersistMetrics+" "+mNotifyMetrics
+                +" in flight="+this.inFlight()+" batches="+mBatches.get();
+    }
+
+    void shutDown() {
+        mDecryptWorkers.shutdown();
+        mDispatchWorker.interrupt();
+        mPersistWorkers.forEach(Thread::interrupt);
+        mNotifyWorker.shutdown();
+        LOGGER.config("metrics: "+this.metricsString());
+    }
+
+    /**
+     * Assign decrypted messages in submission order to the lane of their
+     * chat.
+     */
+    private void dispatchLoop() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = mDecryptQueue.take();
+            } catch (InterruptedException ex) {
+                LOGGER.config("interrupted");
+                return;
+            }
+            // never completes exceptionally
+            entry.decrypted.join();
+
+            int lane = Math.floorMod(chatKey(entry.message).hashCode(), mLanes.size());
+            mLanes.get(lane).add(entry);
+        }
+    }
+
+    /**
+     * Persist messages of a lane in order. The next message and all following
+     * messages already in the lane are saved in one transaction. Notification
+     * (and with it the delivery receipt) is done after the transaction was
+     * committed.
+     *
+     * Note: transactions of lanes can overlap and are then committed together.
+     * Overlapping can not go on forever: without commits no message is
+     * notified, no permit is released and submitting new messages is slowed
+     * down.
+     */
+    private void persistLoop(LinkedBlockingQueue<Entry> lane) {
+        while (true) {
+            Entry entry;
+            try {
+                entry = lane.take();
+            } catch (InterruptedException ex) {
+                LOGGER.config("interrupted");
+                return;
+            }
+
+            List<Entry> batch = new ArrayList<>();
+            mDB.beginTransaction();
+            try {
+                this.persist(entry);
+                batch.add(entry);
+                Entry next;
+                while ((next = lane.poll()) != null) {
+                    this.persist(next);
+                    batch.add(next);
+                }
+            } finally {
+                // wait for the real commit, other threads may still be in a
+                // transaction
+                mDB.afterCommit(committed -> {
+                    if (!committed)
+                        LOGGER.warning("can't commit messages: "+batch.size());
+                    mNotifyWorker.execute(() -> batch.forEach(e -> this.notify(e, committed)));
+                });
+                mDB.endTransaction();
+            }
+            mBatches.incrementAndGet();
+        }
+    }
+
+    private Void decrypt(ProtoMessage message) {
+        if (message.isEncrypted())
+            mKeySupplier.get().ifPresent(mk -> Coder.decryptMessage(mk, message));
+        return null;
+    }
+
+    private void persist(Entry entry) {
+        entry.result = mPersistMetrics.measure(() -> {
+            try {
+                return entry.persist.onDecrypted(entry.message);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "can't process message: "+entry.message, ex);
+                return Optional.empty();
+            }
+        });
+    }
+
+    private void notify(Entry entry, boolean committed) {
+        mNotifyMetrics.measure(() -> {
+            try {
+                entry.result.ifPresent(mNotifier);
+                // no receipt or checkpoint, the server delivers it again
+                if (committed)
+                    entry.onProcessed.run();
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "can't notify message: "+entry.result, ex);
+            } finally {
+                mInFlight.decrementAndGet();
+                if (entry.permit)
+                    mInFlightPermits.release();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Key selecting the lane of a message: the group for group messages (only
+     * known after decryption), the sender otherwise.
+     */
+    private static Object chatKey(ProtoMessage message) {
+        Optional<Object> groupData = message.getContent().getGroupData().map(gd -> gd);
+        return groupData.orElse(message.getContact());
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.kontalk.client.Client;
+import org.kontalk.misc.JID;
+
+/**
+ * Manages public key requests: deduplicated, rate-limited and with
+ * negative caching.
+ *
+ * A request for a contact is not sent again while the previous one is
+ * outstanding. Requests not answered within a timeout count as failed and
+ * the contact is not requested again for some time (unless forced, e.g.
+ * by the user).
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class KeyRequestManager {
+    private static final Logger LOGGER = Logger.getLogger(KeyRequestManager.class.getName());
+
+    /** Requests sent per interval. */
+    private static final int BATCH_SIZE = 10;
+    /** Time between two batches (milliseconds). */
+    private static final long INTERVAL = 1000;
+    /** Time to wait for an answer (milliseconds). */
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+    /** Time between checks for timed out requests (milliseconds). */
+    private static final long EXPIRY_INTERVAL = TIMEOUT / 4;
+    /** Time to not request contacts that didn't answer (milliseconds). */
+    private static final long NEGATIVE_TTL = TimeUnit.HOURS.toMillis(1);
+
+    private final Client mClient;
+    private final ScheduledExecutorService mTimer;
+
+    // guarded by this
+    private final Set<JID> mQueued = new LinkedHashSet<>();
+    // JID -> time request was sent
+    private final Map<JID, Long> mOutstanding = new HashMap<>();
+    // JID -> time request failed
+    private final Map<JID, Long> mFailed = new HashMap<>();
+    private ScheduledFuture<?> mTask = null;
+    private ScheduledFuture<?> mExpiryTask = null;
+    private int mSent = 0;
+    private int mDeduped = 0;
+    private int mAnswered = 0;
+    private int mTimedOut = 0;
+    private int mCancelled = 0;
+
+    KeyRequestManager(Client client) {
+        mClient = client;
+        mTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Key Request Manager");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue request for the public key of a contact.
+     * @param force ignore previous failures
+     */
+    synchronized void request(JID jid, boolean force) {
+        long now = System.currentTimeMillis();
+        this.expire(now);
+
+        Long sent = mOutstanding.get(jid);
+        Long failed = mFailed.get(jid);
+        if (sent != null || mQueued.contains(jid) ||
+                (!force && failed != null && now - failed < NEGATIVE_TTL)) {
+            mDeduped++;
+            return;
+        }
+
+        mQueued.add(jid);
+        if (mTask == null)
+            mTask = mTimer.scheduleWithFixedDelay(this::sendBatch, 0, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /** A public key was received from contact. */
+    synchronized void onAnswer(JID jid) {
+        mFailed.remove(jid);
+        if (mOutstanding.remove(jid) != null)
+            mAnswered++;
+    }
+
+    /**
+     * Drop queued and outstanding requests, e.g. on disconnect. Outstanding
+     * requests won't be answered anymore and count as failed.
+     */
+    synchronized void cancel() {
+        long now = System.currentTimeMillis();
+        this.expire(now);
+        mQueued.clear();
+        for (JID jid : mOutstanding.keySet())
+            mFailed.put(jid, now);
+        mCancelled += mOutstanding.size();
+        mOutstanding.clear();
+        this.stop();
+        this.stopExpiry();
+    }
+
+    synchronized String metrics() {
+        return "sent="+mSent
+                +", deduped="+mDeduped
+                +", answered="+mAnswered
+                +", timed out="+mTimedOut
+                +", cancelled="+mCancelled
+                +", outstanding="+mOutstanding.size()
+                +", queued="+mQueued.size();
+    }
+
+    void shutDown() {
+        mTimer.shutdownNow();
+    }
+
+    private synchronized void sendBatch() {
+        long now = System.currentTimeMillis();
+        Iterator<JID> it = mQueued.iterator();
+        for (int i = 0; i < BATCH_SIZE && it.hasNext(); i++) {
+            JID jid = it.next();
+            it.remove();
+            mOutstanding.put(jid, now);
+            mSent++;
+            mClient.sendPublicKeyRequest(jid);
+        }
+
+        if (mExpiryTask == null && !mOutstanding.isEmpty())
+            mExpiryTask = mTimer.scheduleWithFixedDelay(
+                    () -> this.expire(System.currentTimeMillis()),
+                    EXPIRY_INTERVAL, EXPIRY_INTERVAL, TimeUnit.MILLISECONDS);
+
+        if (mQueued.isEmpty()) {
+            this.stop();
+            LOGGER.info("queue empty, "+this.metrics());
+        }
+    }
+
+    /** Move outstanding requests without answer in time to failed. */
+    private synchronized void expire(long now) {
+        Iterator<Map.Entry<JID, Long>> it = mOutstanding.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<JID, Long> e = it.next();
+            if (now - e.getValue() <= TIMEOUT)
+                continue;
+            it.remove();
+            mFailed.put(e.getKey(), now);
+            mTimedOut++;
+        }
+        // keep the cache small
+        mFailed.values().removeIf(failed -> now - failed >= NEGATIVE_TTL);
+
+        if (mOutstanding.isEmpty())
+            this.stopExpiry();
+    }
+
+    private void stopExpiry() {
+        if (mExpiryTask != null) {
+            mExpiryTask.cancel(false);
+            mExpiryTask = null;
+        }
+    }
+
+    private void stop() {
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.kontalk.client.Client;
+import org.kontalk.misc.JID;
+import org.kontalk.model.Contact;
+import org.kontalk.model.Model;
+import org.kontalk.model.chat.Chat;
+
+/**
+ * Rate-limited sending of last activity requests (XEP-0012).
+ *
+ * Contacts with the most recent chats are requested first. Contacts that
+ * were seen shortly before or already requested while connected are skipped.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class LastActivityScheduler {
+    private static final Logger LOGGER = Logger.getLogger(LastActivityScheduler.class.getName());
+
+    /** Time between two requests (milliseconds). */
+    private static final long INTERVAL = 200;
+    /** Don't request contact seen within this time (milliseconds). */
+    private static final long FRESH_TIME = TimeUnit.MINUTES.toMillis(15);
+
+    private final Client mClient;
+    private final Model mModel;
+    private final ScheduledExecutorService mTimer;
+
+    // guarded by this
+    private final Set<Contact> mPending = new LinkedHashSet<>();
+    // requested since connected
+    private final Set<JID> mRequested = new HashSet<>();
+    // pending contacts in request order, null if outdated
+    private Deque<Contact> mOrdered = null;
+    private ScheduledFuture<?> mTask = null;
+
+    LastActivityScheduler(Client client, Model model) {
+        mClient = client;
+        mModel = model;
+        mTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Last Activity Scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    synchronized void request(Contact contact) {
+        if (mRequested.contains(contact.getJID()))
+            return;
+
+        boolean fresh = contact.getLastSeen()
+                .map(d -> System.currentTimeMillis() - d.getTime() < FRESH_TIME)
+                .orElse(false);
+        if (fresh)
+            return;
+
+        if (mPending.add(contact))
+            mOrdered = null;
+
+        if (mTask == null)
+            mTask = mTimer.scheduleWithFixedDelay(this::next, 0, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /** Drop all outstanding requests, e.g. on disconnect. */
+    synchronized void cancel() {
+        if (!mPending.isEmpty())
+            LOGGER.info("cancelled, pending: "+mPending.size());
+        mPending.clear();
+        mRequested.clear();
+        mOrdered = null;
+        this.stop();
+    }
+
+    void shutDown() {
+        mTimer.shutdownNow();
+    }
+
+    private synchronized void next() {
+        if (mOrdered == null)
+            mOrdered = this.order();
+
+        Contact contact;
+        do {
+            contact = mOrdered.pollFirst();
+            if (contact == null) {
+                this.stop();
+                return;
+            }
+            mPending.remove(contact);
+            // online contacts don't need it
+        } while (contact.getOnline() == Contact.Online.YES);
+
+        JID jid = contact.getJID();
+        mRequested.add(jid);
+        mClient.sendLastActivityRequest(jid);
+    }
+
+    private void stop() {
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+
+    /** Most recent chat activity first, contacts without chat last. */
+    private Deque<Contact> order() {
+        Map<Contact, Long> recent = new HashMap<>();
+        for (Chat chat : mModel.chats()) {
+            long time = chat.getMessages().getLast()
+                    .map(m -> m.getDate().getTime())
+                    .orElse(0L);
+            for (Contact c : chat.getAllContacts())
+                recent.merge(c, time, Math::max);
+        }
+
+        Deque<Contact> ordered = new ArrayDeque<>(mPending.size());
+        mPending.stream()
+                .sorted(Comparator.comparingLong((Contact c) -> recent.getOrDefault(c, -1L))
+                        .reversed())
+                .forEachOrdered(ordered::add);
+        return ordered;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.kontalk.misc.JID;
+
+/**
+ * Buffer for incoming presence updates, e.g. the presence storm after
+ * login.
+ *
+ * Updates are collected over a short time window and applied in one batch,
+ * for each JID only the latest update is kept.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class PresenceBuffer {
+    private static final Logger LOGGER = Logger.getLogger(PresenceBuffer.class.getName());
+
+    /** Time to collect updates before applying (milliseconds). */
+    static final long DEFAULT_WINDOW = 250;
+
+    static final class Update {
+        final JID jid;
+        final Presence.Type type;
+        final Optional<String> status;
+
+        Update(JID jid, Presence.Type type, Optional<String> status) {
+            this.jid = jid;
+            this.type = type;
+            this.status = status;
+        }
+    }
+
+    private final Consumer<Collection<Update>> mApply;
+    private final long mWindow;
+    private final ScheduledExecutorService mTimer;
+    // held while applying, for discarding without an apply in progress
+    private final Object mApplyLock = new Object();
+
+    // guarded by this
+    private Map<JID, Update> mPending = new LinkedHashMap<>();
+    private ScheduledFuture<?> mFlush = null;
+    private int mDropped = 0;
+
+    /** @param apply called with each batch of updates */
+    PresenceBuffer(Consumer<Collection<Update>> apply) {
+        this(apply, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param apply called with each batch of updates
+     * @param window time to collect updates (milliseconds), if 0 updates are
+     * only applied by calling {@link #flush}
+     */
+    PresenceBuffer(Consumer<Collection<Update>> apply, long window) {
+        mApply = apply;
+        mWindow = window;
+        mTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Presence Buffer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    synchronized void add(JID jid, Presence.Type type, Optional<String> status) {
+        // replace (and remove from old position)
+        if (mPending.remove(jid) != null)
+            mDropped++;
+        mPending.put(jid, new Update(jid, type, status));
+
+        if (mFlush == null && mWindow > 0)
+            mFlush = mTimer.schedule(this::flush, mWindow, TimeUnit.MILLISECONDS);
+    }
+
+    /** Apply all buffered updates now. */
+    void flush() {
+        synchronized (mApplyLock) {
+            Map<JID, Update> batch;
+            int dropped;
+            synchronized (this) {
+                this.cancelFlush();
+                batch = mPending;
+                dropped = mDropped;
+                mPending = new LinkedHashMap<>();
+                mDropped = 0;
+            }
+            if (batch.isEmpty())
+                return;
+
+            LOGGER.config("applying: "+batch.size()+", dropped: "+dropped);
+            mApply.accept(batch.values());
+        }
+    }
+
+    /**
+     * Discard all buffered updates, e.g. on disconnect. Waits if updates are
+     * currently applied, none are applied after returning.
+     */
+    void clear() {
+        synchronized (mApplyLock) {
+            synchronized (this) {
+                this.cancelFlush();
+                if (!mPending.isEmpty())
+                    LOGGER.config("discarding: "+mPending.size());
+                mPending = new LinkedHashMap<>();
+                mDropped = 0;
+            }
+        }
+    }
+
+    private void cancelFlush() {
+        if (mFlush != null) {
+            mFlush.cancel(false);
+            mFlush = null;
+        }
+    }
+}
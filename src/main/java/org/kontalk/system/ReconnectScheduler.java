@@ -0,0 +1,154 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules connection retries after failure with exponential backoff and
+ * random jitter. A change of the local network interfaces (e.g. WiFi is
+ * back) triggers the retry immediately.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class ReconnectScheduler {
+    private static final Logger LOGGER = Logger.getLogger(ReconnectScheduler.class.getName());
+
+    /** Delay before first retry (seconds). */
+    private static final int BASE_DELAY = 2;
+    /** Maximal delay between retries (seconds). */
+    private static final int MAX_DELAY = 300;
+
+    private final Runnable mConnect;
+    private final IntConsumer mCountDown;
+    private final ScheduledExecutorService mTimer;
+
+    // guarded by this
+    private ScheduledFuture<?> mTask = null;
+    private int mAttempts = 0;
+    private long mFailedSince = 0;
+
+    /**
+     * @param connect starts a connection attempt
+     * @param countDown called every second with seconds until next attempt
+     */
+    ReconnectScheduler(Runnable connect, IntConsumer countDown) {
+        mConnect = connect;
+        mCountDown = countDown;
+        mTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Retry Timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Connection attempt failed or connection was lost, schedule retry. */
+    synchronized void onFailure() {
+        this.cancel();
+
+        if (mFailedSince == 0)
+            mFailedSince = System.currentTimeMillis();
+
+        int delay = delay(mAttempts++);
+        LOGGER.info("attempt: "+mAttempts+", retry in "+delay+"s");
+
+        Set<String> network = networkState();
+        mTask = mTimer.scheduleAtFixedRate(new Runnable() {
+            private int mRemaining = delay;
+
+            @Override
+            public void run() {
+                if (mRemaining > 0 && network.equals(networkState())) {
+                    mCountDown.accept(mRemaining--);
+                    return;
+                }
+                if (mRemaining > 0)
+                    LOGGER.info("network changed, retrying now");
+
+                synchronized (ReconnectScheduler.this) {
+                    ReconnectScheduler.this.cancel();
+                }
+                mConnect.run();
+            }
+        }, 0, 1, TimeUnit.SECONDS);
+    }
+
+    /** Connected, reset backoff. */
+    synchronized void onConnected(boolean resumed) {
+        this.cancel();
+        if (mFailedSince != 0) {
+            LOGGER.info("reconnected after "+(System.currentTimeMillis() - mFailedSince)
+                    +"ms, attempts: "+mAttempts+", resumed: "+resumed);
+        }
+        mAttempts = 0;
+        mFailedSince = 0;
+    }
+
+    /** Stop retrying, e.g. on user connect/disconnect. */
+    synchronized void cancel() {
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+
+    void shutDown() {
+        mTimer.shutdownNow();
+    }
+
+    /** Exponential backoff with "equal jitter": half fixed, half random. */
+    private static int delay(int attempt) {
+        int max = BASE_DELAY << Math.min(attempt, 16);
+        max = Math.min(max, MAX_DELAY);
+        return max / 2 + ThreadLocalRandom.current().nextInt(max / 2 + 1);
+    }
+
+    /** Addresses of all active, non-loopback interfaces. */
+    private static Set<String> networkState() {
+        Set<String> state = new HashSet<>();
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            if (interfaces == null)
+                return state;
+            for (NetworkInterface ni : Collections.list(interfaces)) {
+                if (!ni.isUp() || ni.isLoopback())
+                    continue;
+                for (InterfaceAddress a : ni.getInterfaceAddresses())
+                    state.add(ni.getName()+"/"+a.getAddress().getHostAddress());
+            }
+        } catch (SocketException ex) {
+            LOGGER.log(Level.WARNING, "can't get network interfaces", ex);
+        }
+        return state;
+    }
+}
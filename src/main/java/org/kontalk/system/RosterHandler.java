@@ -18,17 +18,18 @@
 
 package org.kontalk.system;
 
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.StanzaError;
 import org.kontalk.client.Client;
 import org.kontalk.client.HKPClient;
-import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PGPUtils;
 import org.kontalk.misc.JID;
 import org.kontalk.misc.ViewEvent;
@@ -36,6 +37,7 @@ import org.kontalk.model.Contact;
 import org.kontalk.model.Contact.Subscription;
 import org.kontalk.model.Model;
 import org.kontalk.persistence.Config;
+import org.kontalk.persistence.Database;
 import org.kontalk.util.ClientUtils;
 
 /**
@@ -49,6 +51,9 @@ public final class RosterHandler {
     private final Control mControl;
     private final Client mClient;
     private final Model mModel;
+    private final Database mDB;
+    private final HKPClient mHKPClient;
+    private final PresenceBuffer mPresenceBuffer;
 
     private static final List<String> KEY_SERVERS = Collections.singletonList(
             "pgp.mit.edu"
@@ -60,21 +65,38 @@ public final class RosterHandler {
         SERVER_NOT_FOUND
     }
 
-    RosterHandler(Control control, Client client, Model model) {
+    RosterHandler(Control control, Client client, Model model, Database db,
+            HKPClient hkpClient) {
         mControl = control;
         mClient = client;
         mModel = model;
+        mDB = db;
+        mHKPClient = hkpClient;
+        mPresenceBuffer = new PresenceBuffer(this::applyPresenceUpdates);
     }
 
     public void onLoaded(List<ClientUtils.KonRosterEntry> entries) {
-        for (ClientUtils.KonRosterEntry entry: entries)
-            this.onEntryAdded(entry);
+        long start = System.currentTimeMillis();
+
+        Set<JID> rosterJIDs = new HashSet<>(entries.size() * 2);
+        // all contact changes in one commit
+        mDB.beginTransaction();
+        try {
+            for (ClientUtils.KonRosterEntry entry: entries) {
+                rosterJIDs.add(entry.jid);
+                this.onEntryAdded(entry);
+            }
+        } finally {
+            mDB.endTransaction();
+        }
 
         // check for deleted entries
-        List<JID> rosterJIDs = entries.stream().map(e -> e.jid).collect(Collectors.toList());
         for (Contact contact : mModel.contacts().getAll(false, true))
             if (!rosterJIDs.contains(contact.getJID()))
                 this.onEntryDeleted(contact.getJID());
+
+        LOGGER.info("entries: "+entries.size()
+                +", time ms: "+(System.currentTimeMillis() - start));
     }
 
     public void onEntryAdded(ClientUtils.KonRosterEntry entry) {
@@ -135,7 +157,7 @@ public final class RosterHandler {
         if (contact.getSubScription() == Subscription.SUBSCRIBED &&
                 (contact.getOnline() == Contact.Online.UNKNOWN ||
                         contact.getOnline() == Contact.Online.NO))
-            mClient.sendLastActivityRequest(contact.getJID());
+            mControl.requestLastActivity(contact);
     }
 
     public void onSubscriptionRequest(JID jid, byte[] rawKey) {
@@ -155,6 +177,33 @@ public final class RosterHandler {
     }
 
     public void onPresenceUpdate(JID jid, Presence.Type type, Optional<String> optStatus) {
+        // applied later in batch
+        mPresenceBuffer.add(jid, type, optStatus);
+    }
+
+    /**
+     * Connection lost: discard buffered presence updates and reset the online
+     * status of all contacts.
+     */
+    void onDisconnected() {
+        // after this no buffered update is applied anymore
+        mPresenceBuffer.clear();
+        for (Contact contact : mModel.contacts().getAll(false, false))
+            contact.setOnlineStatus(Contact.Online.UNKNOWN);
+    }
+
+    private void applyPresenceUpdates(Collection<PresenceBuffer.Update> updates) {
+        // one commit for all (if anything is saved at all)
+        mDB.beginTransaction();
+        try {
+            for (PresenceBuffer.Update u : updates)
+                this.applyPresenceUpdate(u.jid, u.type, u.status);
+        } finally {
+            mDB.endTransaction();
+        }
+    }
+
+    private void applyPresenceUpdate(JID jid, Presence.Type type, Optional<String> optStatus) {
         JID myJID = mClient.getOwnJID().orElse(null);
         if (myJID != null && myJID.equals(jid))
             // don't wanna see myself
@@ -202,26 +251,21 @@ public final class RosterHandler {
         if (keyID == 0)
             return;
 
-        if (contact.hasKey()) {
-            PGPUtils.PGPCoderKey key = Coder.contactkey(contact).orElse(null);
-            if (key != null && key.signKey.getKeyID() == keyID)
-                // already have this key
-                return;
-        }
+        if (this.isKnownKey(contact, keyID))
+            return;
 
         String id = Long.toHexString(keyID);
-        HKPClient hkpClient = new HKPClient();
-        String foundKey = "";
-        for (String server: KEY_SERVERS) {
-            foundKey = hkpClient.search(server, id);
-            if (!foundKey.isEmpty())
-                break;
-        }
+        mHKPClient.lookup(KEY_SERVERS, id)
+                .thenAccept(foundKey -> this.onHKPResult(contact, keyID, foundKey));
+    }
+
+    private void onHKPResult(Contact contact, long keyID, String foundKey) {
+        String id = Long.toHexString(keyID);
         if (foundKey.isEmpty()) {
-            LOGGER.config("searched for public key (nothing found): "+jid+" keyId="+id);
+            LOGGER.config("searched for public key (nothing found): "+contact.getJID()+" keyId="+id);
             return;
         }
-        LOGGER.info("key found with HKP: "+jid+" keyId="+id);
+        LOGGER.info("key found with HKP: "+contact.getJID()+" keyId="+id);
 
         PGPUtils.PGPCoderKey key = PGPUtils.readPublicKey(foundKey).orElse(null);
         if (key == null)
@@ -232,9 +276,25 @@ public final class RosterHandler {
             return;
         }
 
+        if (this.isKnownKey(contact, keyID))
+            // got it meanwhile
+            return;
+
         mControl.getViewControl().changed(new ViewEvent.NewKey(contact, key));
     }
 
+    /** Return whether the key ID belongs to this or another contact. */
+    private boolean isKnownKey(Contact contact, long keyID) {
+        Contact owner = mModel.contacts().getBySignKeyID(keyID).orElse(null);
+        if (owner == null)
+            return false;
+
+        if (!owner.equals(contact))
+            LOGGER.warning("key ID of other contact: "+owner.getJID()+", ignoring for: "
+                    +contact.getJID());
+        return true;
+    }
+
     public void onPresenceError(JID jid, StanzaError.Type type, StanzaError.Condition condition) {
         if (type != StanzaError.Type.CANCEL)
             // it can't be that bad)
@@ -0,0 +1,119 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kontalk.model.chat.Chat;
+import org.kontalk.model.message.MessageContent;
+import org.kontalk.model.message.OutMessage;
+import org.kontalk.util.MessageUtils.SendTask;
+
+/**
+ * Asynchronous pipeline for sending new messages created by the user, to
+ * keep the EDT free.
+ *
+ * Stages: persist (message is shown as pending), create image preview,
+ * encrypt, send. Each stage runs on its own single thread, so messages keep
+ * their order while different messages can be in different stages.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class SendPipeline {
+    private static final Logger LOGGER = Logger.getLogger(SendPipeline.class.getName());
+
+    private final Control mControl;
+    private final ExecutorService mPersister = stageExecutor("Send Persist");
+    private final ExecutorService mPreviewer = stageExecutor("Send Preview");
+    private final ExecutorService mEncryptor = stageExecutor("Send Encrypt");
+    private final ExecutorService mSender = stageExecutor("Send Transmit");
+
+    SendPipeline(Control control) {
+        mControl = control;
+    }
+
+    /** Create, save and send new message. Returns immediately. */
+    void send(Chat chat, MessageContent content) {
+        long start = System.nanoTime();
+        CompletableFuture
+                .supplyAsync(() -> mControl.createOutMessage(chat, content), mPersister)
+                .thenApplyAsync(stage((OutMessage m) -> {
+                    mControl.mayCreatePreview(m);
+                    return Optional.of(m);
+                }), mPreviewer)
+                .thenApplyAsync(stage(mControl::prepareSendTask), mEncryptor)
+                .thenAcceptAsync(t -> t.ifPresent(task -> this.transmit(task, start)), mSender)
+                .exceptionally(SendPipeline::onError);
+    }
+
+    /** Send again an already saved message. Returns immediately. */
+    void resend(OutMessage message) {
+        long start = System.nanoTime();
+        CompletableFuture
+                .supplyAsync(() -> mControl.prepareSendTask(message), mEncryptor)
+                .thenAcceptAsync(t -> t.ifPresent(task -> this.transmit(task, start)), mSender)
+                .exceptionally(SendPipeline::onError);
+    }
+
+    void shutDown() {
+        // don't lose new messages, pending ones are send again later
+        mPersister.shutdown();
+        try {
+            mPersister.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, "interrupted while waiting", ex);
+            Thread.currentThread().interrupt();
+        }
+        mPreviewer.shutdownNow();
+        mEncryptor.shutdownNow();
+        mSender.shutdownNow();
+    }
+
+    private void transmit(SendTask task, long start) {
+        mControl.sendPrepared(task);
+        LOGGER.config("message handled in ms: "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                + ", "+task.message);
+    }
+
+    private static <T, R> Function<Optional<T>, Optional<R>> stage(
+            Function<T, Optional<R>> f) {
+        return o -> o.flatMap(f);
+    }
+
+    private static Void onError(Throwable ex) {
+        LOGGER.log(Level.WARNING, "can't send message", ex);
+        return null;
+    }
+
+    private static ExecutorService stageExecutor(String name) {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -18,15 +18,18 @@
 
 package org.kontalk.util;
 
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.EnumSet;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.commons.io.input.CharSequenceInputStream;
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.lang.StringUtils;
 import org.json.simple.JSONObject;
@@ -83,6 +86,12 @@ public final class EncodingUtils {
         return Base64.getDecoder().decode(base64);
     }
 
+    /** Stream decoding a Base64 string, the decoded data is not copied as a whole. */
+    public static InputStream base64ToStream(String base64) {
+        return Base64.getDecoder().wrap(
+                new CharSequenceInputStream(base64, StandardCharsets.US_ASCII));
+    }
+
     public static String bytesToBase64(byte[] bytes) {
         return Base64.getEncoder().encodeToString(bytes);
     }
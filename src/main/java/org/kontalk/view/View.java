@@ -23,6 +23,8 @@ import javax.swing.SwingUtilities;
 import javax.swing.ToolTipManager;
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.EnumSet;
@@ -38,6 +40,7 @@ import java.util.logging.Logger;
 import com.alee.extended.statusbar.WebStatusBar;
 import com.alee.extended.statusbar.WebStatusLabel;
 import com.alee.laf.WebLookAndFeel;
+import com.alee.laf.button.WebButton;
 import com.alee.laf.label.WebLabel;
 import com.alee.laf.optionpane.WebOptionPane;
 import com.alee.laf.panel.WebPanel;
@@ -127,6 +130,7 @@ public final class View implements ObserverTrait {
     private final Content mContent;
     private final ChatView mChatView;
     private final WebStatusLabel mStatusBarLabel;
+    private final WebButton mCancelDecryptionButton;
     private final MainFrame mMainFrame;
 
     final String tr_remove_contact = Tr.tr("Chats and messages will not be deleted.");
@@ -155,8 +159,25 @@ public final class View implements ObserverTrait {
                 mChatView);
         // status bar
         WebStatusBar statusBar = new WebStatusBar();
-        mStatusBarLabel = new WebStatusLabel(" ");
+        mStatusBarLabel = new WebStatusLabel(" ") {
+            @Override
+            public String getToolTipText() {
+                return mControl.getInMessageMetrics();
+            }
+        };
+        ToolTipManager.sharedInstance().registerComponent(mStatusBarLabel);
         statusBar.add(mStatusBarLabel);
+        mCancelDecryptionButton = new WebButton(Tr.tr("Cancel"));
+        mCancelDecryptionButton.setToolTipText(Tr.tr("Stop verifying old messages"));
+        mCancelDecryptionButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                mCancelDecryptionButton.setVisible(false);
+                mControl.cancelBulkDecryption();
+            }
+        });
+        mCancelDecryptionButton.setVisible(false);
+        statusBar.add(mCancelDecryptionButton);
         // main frame
         mMainFrame = new MainFrame(this, mModel, mContactListView, mChatListView,
                 mContent, searchPanel, statusBar);
@@ -267,6 +288,14 @@ public final class View implements ObserverTrait {
             mNotifier.showPresenceError(presenceError.contact, presenceError.error);
         } else if (arg instanceof ViewEvent.SubscriptionRequest) {
             mNotifier.confirmSubscription((ViewEvent.SubscriptionRequest) arg);
+        } else if (arg instanceof ViewEvent.DecryptionProgress) {
+            ViewEvent.DecryptionProgress progress = (ViewEvent.DecryptionProgress) arg;
+            mStatusBarLabel.setText(progress.finished ?
+                    String.format(Tr.tr("Verified %1$d of %2$d messages"),
+                            progress.done, progress.total) :
+                    String.format(Tr.tr("Verifying messages… %1$d/%2$d"),
+                            progress.done, progress.total));
+            mCancelDecryptionButton.setVisible(!progress.finished);
         } else if (arg instanceof ViewEvent.RetryTimerMessage) {
             mStatusBarLabel.setText(
                     String.format(Tr.tr("Connection failure. Retry in %1$d seconds."),
@@ -0,0 +1,111 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+import org.kontalk.misc.JID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of concurrent item discovery with simulated server items.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class FeatureDiscoveryTest {
+
+    private static final JID UPLOAD = JID.bare("upload.example.org");
+    private static final JID PUBSUB = JID.bare("pubsub.example.org");
+    private static final JID ACTIVITY = JID.bare("activity.example.org");
+    private static final JID SLOW = JID.bare("slow.example.org");
+
+    /** Only for failing tests, not for timing. */
+    private static final long TIMEOUT = 10000;
+
+    private static EnumMap<FeatureDiscovery.Feature, JID> respond(JID entity) {
+        EnumMap<FeatureDiscovery.Feature, JID> features =
+                new EnumMap<>(FeatureDiscovery.Feature.class);
+        if (entity.equals(UPLOAD))
+            features.put(FeatureDiscovery.Feature.HTTP_FILE_UPLOAD, entity);
+        else if (entity.equals(PUBSUB))
+            features.put(FeatureDiscovery.Feature.USER_AVATAR, entity);
+        else
+            features.put(FeatureDiscovery.Feature.LAST_ACTIVITY, entity);
+        return features;
+    }
+
+    @Test
+    public void testDiscoverAllConcurrent() {
+        List<JID> entities = Arrays.asList(UPLOAD, PUBSUB, ACTIVITY);
+        // no item replies before all requests were made
+        CyclicBarrier allRequested = new CyclicBarrier(entities.size());
+        EnumMap<FeatureDiscovery.Feature, JID> features =
+                FeatureDiscovery.discoverAll(entities, e -> {
+                    try {
+                        allRequested.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException | BrokenBarrierException | TimeoutException ex) {
+                        return null;
+                    }
+                    return respond(e);
+                },
+                2 * TIMEOUT);
+
+        assertFalse("not concurrent", allRequested.isBroken());
+        assertEquals(UPLOAD, features.get(FeatureDiscovery.Feature.HTTP_FILE_UPLOAD));
+        assertEquals(PUBSUB, features.get(FeatureDiscovery.Feature.USER_AVATAR));
+        assertEquals(ACTIVITY, features.get(FeatureDiscovery.Feature.LAST_ACTIVITY));
+    }
+
+    @Test
+    public void testDiscoverAllIgnoresSlowItem() throws InterruptedException {
+        List<JID> entities = Arrays.asList(UPLOAD, SLOW);
+        // the slow item never replies on its own
+        CountDownLatch never = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        EnumMap<FeatureDiscovery.Feature, JID> features =
+                FeatureDiscovery.discoverAll(entities, e -> {
+                    if (e.equals(SLOW)) {
+                        try {
+                            never.await();
+                        } catch (InterruptedException ex) {
+                            cancelled.countDown();
+                            return null;
+                        }
+                    }
+                    return respond(e);
+                },
+                500);
+
+        assertEquals(UPLOAD, features.get(FeatureDiscovery.Feature.HTTP_FILE_UPLOAD));
+        assertFalse(features.containsKey(FeatureDiscovery.Feature.LAST_ACTIVITY));
+        assertTrue("slow item not cancelled",
+                cancelled.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+}
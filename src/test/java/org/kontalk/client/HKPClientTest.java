@@ -0,0 +1,115 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test of HKP lookups against a local stand-in keyserver.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class HKPClientTest {
+
+    private static final String KEY_ID = "1234abcd";
+    private static final String KEY = "-----BEGIN PGP PUBLIC KEY BLOCK-----";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private List<String> mServers;
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        mServer.createContext("/pks/lookup", exchange -> {
+            mRequests.incrementAndGet();
+            try {
+                // slow server
+                Thread.sleep(200);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            boolean found = exchange.getRequestURI().getQuery().endsWith("0x"+KEY_ID);
+            byte[] body = (found ? KEY : "").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(found ? 200 : 404, found ? body.length : -1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        mServer.start();
+        mServers = Collections.singletonList(
+                "http://localhost:"+mServer.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void testLookupCoalescedAndCached() {
+        HKPClient client = new HKPClient(mFolder.getRoot().toPath());
+        CompletableFuture<String> first = client.lookup(mServers, KEY_ID);
+        CompletableFuture<String> second = client.lookup(mServers, KEY_ID);
+        assertEquals(KEY, first.join());
+        assertEquals(KEY, second.join());
+        assertEquals(1, mRequests.get());
+
+        // persistent
+        HKPClient newClient = new HKPClient(mFolder.getRoot().toPath());
+        assertEquals(KEY, newClient.lookup(mServers, KEY_ID).join());
+        assertEquals(1, mRequests.get());
+    }
+
+    @Test
+    public void testNotFoundCached() {
+        HKPClient client = new HKPClient(mFolder.getRoot().toPath());
+        assertEquals("", client.lookup(mServers, "ffff0000").join());
+        assertEquals("", client.lookup(mServers, "ffff0000").join());
+        assertEquals(1, mRequests.get());
+    }
+
+    @Test
+    public void testUnreachableNotCached() {
+        HKPClient client = new HKPClient(mFolder.getRoot().toPath());
+        List<String> unreachable = Collections.singletonList("http://localhost:1");
+        assertEquals("", client.lookup(unreachable, KEY_ID).join());
+        assertEquals(KEY, client.lookup(mServers, KEY_ID).join());
+        assertEquals(1, mRequests.get());
+    }
+}
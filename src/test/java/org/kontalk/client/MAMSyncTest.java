@@ -0,0 +1,130 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jivesoftware.smack.packet.Message;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of history synchronization against a large synthetic archive.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class MAMSyncTest {
+
+    private static final int ARCHIVE_SIZE = 10000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /** Stand-in for the server archive. */
+    private static final class SyntheticArchive implements MAMSync.Archive {
+        private final List<MAMSync.Item> mItems = new ArrayList<>(ARCHIVE_SIZE);
+        private int mFailAtPage;
+        private int mQueries = 0;
+
+        SyntheticArchive(int failAtPage) {
+            mFailAtPage = failAtPage;
+            for (int i = 0; i < ARCHIVE_SIZE; i++) {
+                Message m = new Message();
+                m.setType(Message.Type.chat);
+                m.setBody("message "+i);
+                mItems.add(new MAMSync.Item("uid"+i, m, new Date(i * 1000L)));
+            }
+        }
+
+        @Override
+        public Optional<MAMSync.Page> query(Optional<String> afterUID,
+                Optional<Date> since, int max) {
+            if (mQueries++ == mFailAtPage)
+                // connection lost
+                return Optional.empty();
+
+            int start = afterUID.map(uid -> Integer.parseInt(uid.substring(3)) + 1).orElse(0);
+            if (since.isPresent()) {
+                while (start < mItems.size() && mItems.get(start).date.before(since.get()))
+                    start++;
+            }
+            int end = Math.min(start + max, mItems.size());
+            return Optional.of(new MAMSync.Page(
+                    new ArrayList<>(mItems.subList(start, end)), end == mItems.size()));
+        }
+    }
+
+    @Test
+    public void testSyncResumesAfterInterruption() {
+        Path checkpoint = mFolder.getRoot().toPath().resolve("checkpoint");
+        SyntheticArchive archive = new SyntheticArchive(10);
+        List<String> processed = new ArrayList<>();
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        MAMSync.Processor processor = (m, date, onProcessed) -> worker.execute(() -> {
+            processed.add(m.getBody());
+            onProcessed.run();
+        });
+
+        MAMSync sync = new MAMSync(archive, processor, checkpoint,
+                Optional::empty, () -> false, 0);
+        assertFalse(sync.sync());
+        assertEquals(10 * MAMSync.PAGE_SIZE, processed.size());
+
+        // new instance, continues from saved checkpoint
+        sync = new MAMSync(archive, processor, checkpoint,
+                Optional::empty, () -> false, 0);
+        assertTrue(sync.sync());
+
+        worker.shutdown();
+        assertEquals(ARCHIVE_SIZE, processed.size());
+        for (int i = 0; i < ARCHIVE_SIZE; i++)
+            assertEquals("message "+i, processed.get(i));
+    }
+
+    @Test
+    public void testFirstSyncStartsAtLastKnownMessage() {
+        Path checkpoint = mFolder.getRoot().toPath().resolve("checkpoint");
+        SyntheticArchive archive = new SyntheticArchive(-1);
+        List<String> processed = new ArrayList<>();
+        MAMSync.Processor processor = (m, date, onProcessed) -> {
+            processed.add(m.getBody());
+            onProcessed.run();
+        };
+
+        int lastKnown = ARCHIVE_SIZE - 100;
+        MAMSync sync = new MAMSync(archive, processor, checkpoint,
+                () -> Optional.of(new Date(lastKnown * 1000L)), () -> false, 0);
+        assertTrue(sync.sync());
+
+        // "since" is inclusive, the last known message is queried again
+        assertEquals(100, processed.size());
+        assertEquals("message "+lastKnown, processed.get(0));
+    }
+}
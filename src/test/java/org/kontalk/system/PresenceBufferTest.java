@@ -0,0 +1,97 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.junit.Test;
+import org.kontalk.misc.JID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress test of presence coalescing, replaying a presence storm.
+ *
+ * The buffer is created without timer, updates are only applied by flushing
+ * explicitly.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public class PresenceBufferTest {
+
+    private static final int CONTACTS = 2000;
+    private static final int PRESENCES = 10000;
+
+    private static List<JID> jids() {
+        List<JID> jids = new ArrayList<>(CONTACTS);
+        for (int i = 0; i < CONTACTS; i++)
+            jids.add(JID.bare("user"+i+"@example.org"));
+        return jids;
+    }
+
+    @Test
+    public void testPresenceStorm() {
+        List<List<PresenceBuffer.Update>> batches = new ArrayList<>();
+        PresenceBuffer buffer = new PresenceBuffer(
+                updates -> batches.add(new ArrayList<>(updates)), 0);
+
+        List<JID> jids = jids();
+        // every contact flaps: available, unavailable, ..., last is available
+        for (int i = 0; i < PRESENCES; i++) {
+            int round = i / CONTACTS;
+            boolean last = round == PRESENCES / CONTACTS - 1;
+            Presence.Type type = last || round % 2 == 0 ?
+                    Presence.Type.available :
+                    Presence.Type.unavailable;
+            buffer.add(jids.get(i % CONTACTS), type, Optional.of("round "+round));
+        }
+        assertTrue(batches.isEmpty());
+        buffer.flush();
+
+        // one batch, with one update per contact, the latest
+        assertEquals(1, batches.size());
+        List<PresenceBuffer.Update> applied = batches.get(0);
+        assertEquals(CONTACTS, applied.size());
+        for (PresenceBuffer.Update update : applied) {
+            assertEquals(Presence.Type.available, update.type);
+            assertEquals("round "+(PRESENCES / CONTACTS - 1), update.status.get());
+        }
+
+        // nothing left
+        buffer.flush();
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void testClearDiscardsUpdates() {
+        List<PresenceBuffer.Update> applied = new ArrayList<>();
+        PresenceBuffer buffer = new PresenceBuffer(applied::addAll, 0);
+
+        for (JID jid : jids())
+            buffer.add(jid, Presence.Type.available, Optional.empty());
+        buffer.clear();
+        buffer.flush();
+
+        assertTrue(applied.isEmpty());
+    }
+}